@@ -1,13 +1,19 @@
 package dslab;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 public class Message {
 
+    // identifier of the message in the transfer server's spool, 0 if it has not been spooled
+    private long id;
     private String subject;
     private String sender;
     private String data;
+    // the UTF-8 bytes of the data as received, kept instead of data so the transfer server never decodes them
+    private ByteBuffer body;
     private String hash;
 
     private List<String> recipients;
@@ -16,6 +22,14 @@ public class Message {
         recipients = new ArrayList<>();
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getHash() {
         return hash;
     }
@@ -41,11 +55,43 @@ public class Message {
     }
 
     public String getData() {
+        if (data == null && body != null) {
+            return StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+        }
         return data;
     }
 
     public void setData(String data) {
         this.data = data;
+        this.body = null;
+    }
+
+    /**
+     * Returns the data as UTF-8 bytes. If the message was received as bytes, the returned buffer shares them; it has
+     * its own position and limit, so concurrent readers do not interfere, but its content must not be modified.
+     *
+     * @return the data bytes between position and limit, or null if the message has no data
+     */
+    public ByteBuffer getBody() {
+        if (body == null) {
+            return data == null ? null : ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+        }
+        return body.duplicate();
+    }
+
+    /**
+     * Sets the data as UTF-8 bytes, which are taken over without copying.
+     */
+    public void setBody(ByteBuffer body) {
+        this.body = body;
+        this.data = null;
+    }
+
+    /**
+     * @return true if the message has non-empty data, without decoding it
+     */
+    public boolean hasData() {
+        return body != null ? body.hasRemaining() : data != null && !data.isEmpty();
     }
 
     public List<String> getRecipients() {
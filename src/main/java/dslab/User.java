@@ -1,27 +1,31 @@
 package dslab;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class User {
     private String name;
-    private ConcurrentHashMap<Integer, Message> messages;
+    // ordered by id, so listing the messages shows them in the order they were delivered
+    private ConcurrentNavigableMap<Integer, Message> messages;
+    // the last id handed out; ids are never reused, even after the message has been deleted
+    private AtomicInteger lastId = new AtomicInteger();
 
     public User(String name) {
         this.name = name;
-        messages = new ConcurrentHashMap<>();
+        messages = new ConcurrentSkipListMap<>();
     }
 
-    public void addMessage(Message message) {
-        if (!this.messages.isEmpty()) {
-            List<Integer> keys = new ArrayList<>(this.messages.keySet());
-            Collections.sort(keys, Collections.reverseOrder());
-            this.messages.put(keys.get(0) + 1, message);
-        } else {
-            this.messages.put(this.messages.size() + 1, message);
-        }
+    /**
+     * Adds a message under the next id. Safe to call from several threads at once.
+     *
+     * @param message the message
+     * @return the id of the message
+     */
+    public int addMessage(Message message) {
+        int id = lastId.incrementAndGet();
+        this.messages.put(id, message);
+        return id;
     }
 
     public String getName() {
@@ -32,11 +36,12 @@ public class User {
         this.name = name;
     }
 
-    public ConcurrentHashMap<Integer, Message> getMessages() {
+    public ConcurrentNavigableMap<Integer, Message> getMessages() {
         return messages;
     }
 
-    public void setMessages(ConcurrentHashMap<Integer, Message> messages) {
+    public void setMessages(ConcurrentNavigableMap<Integer, Message> messages) {
         this.messages = messages;
+        lastId.set(messages.isEmpty() ? 0 : messages.lastKey());
     }
 }
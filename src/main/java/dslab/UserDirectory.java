@@ -0,0 +1,59 @@
+package dslab;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dslab.util.Config;
+
+/**
+ * The users of a mailbox server, indexed by name and shared by the DMTP and DMAP sessions. Looking up a user takes
+ * constant time and does not lock the directory, so sessions of different users never wait for each other. A
+ * {@link User} is created the first time a message is delivered to the account or its owner logs in.
+ */
+public class UserDirectory {
+
+    private Set<String> accounts;
+    private ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+
+    /**
+     * @param userConfig the accounts of the mailbox server, mapping the user names to their passwords
+     */
+    public UserDirectory(Config userConfig) {
+        // read once, listing the keys of the config copies them
+        this.accounts = Collections.unmodifiableSet(userConfig.listKeys());
+    }
+
+    /**
+     * @return the names of all accounts of the mailbox server
+     */
+    public Set<String> getAccounts() {
+        return accounts;
+    }
+
+    public boolean isAccount(String name) {
+        return accounts.contains(name);
+    }
+
+    /**
+     * @param name the name of the user
+     * @return the user, or null if nothing has been delivered to the account and its owner has not logged in yet
+     */
+    public User get(String name) {
+        return users.get(name);
+    }
+
+    /**
+     * Returns the user with the given name, creating it atomically if it does not exist yet.
+     *
+     * @param name the name of the user
+     * @return the user, the same instance for every caller
+     */
+    public User getOrCreate(String name) {
+        return users.computeIfAbsent(name, User::new);
+    }
+
+    public int size() {
+        return users.size();
+    }
+}
@@ -10,7 +10,6 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
@@ -18,6 +17,7 @@ import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
 import dslab.Message;
 import dslab.util.Config;
+import dslab.util.HandlerExecutors;
 import dslab.util.Keys;
 
 import javax.crypto.BadPaddingException;
@@ -44,7 +44,7 @@ public class MessageClient implements IMessageClient, Runnable {
      */
     public MessageClient(String componentId, Config config, InputStream in, PrintStream out) {
         this.config = config;
-        this.executor = Executors.newCachedThreadPool();
+        this.executor = HandlerExecutors.newPerTaskExecutor(config);
         shell = new Shell(in, out);
         shell.register(this);
         shell.setPrompt(componentId + "> ");
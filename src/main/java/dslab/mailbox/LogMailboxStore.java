@@ -0,0 +1,565 @@
+package dslab.mailbox;
+
+import dslab.Message;
+import dslab.util.Config;
+import dslab.util.RecordBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the inboxes of all users in an append-only log on disk, so they survive a restart. Every message is a record
+ * in the current segment file, and deleting a message appends a delete record. Only an index is kept on the heap: per
+ * user the segment and offset of every message, with its sender and subject for listing. Segments are memory mapped for
+ * reading, and a message is shown with its body as a slice of the mapping, so bodies are never copied to the heap. A
+ * single writer thread collects all pending records, writes them and forces them to disk together (group commit), so
+ * concurrent sessions share one fsync, and a session gets its {@code ok} only once its record is on disk. Segments are
+ * rolled at a configurable size and deleted, oldest first, as soon as all of their messages have been deleted. On
+ * startup the segments are replayed to rebuild the index; a record torn by a crash ends the replay of its segment.
+ */
+public class LogMailboxStore implements MailboxStore {
+
+    private static final byte MESSAGE = 1;
+    private static final byte DELETE = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final PendingWrite STOP = new PendingWrite(null, (byte) 0, null, 0, null, null);
+
+    private Path directory;
+    private long segmentSize;
+    private FileChannel segment;
+    private int segmentNumber;
+    private long segmentBytes;
+
+    private Map<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    // the number of messages not deleted yet, per segment; only modified by the writer thread
+    private Map<Integer, Integer> liveCounts = new ConcurrentSkipListMap<>();
+    // the read-only mapping of every segment read so far, replaced by a larger one when the segment has grown
+    private Map<Integer, MappedByteBuffer> mappings = new ConcurrentHashMap<>();
+
+    private BlockingQueue<PendingWrite> writes = new LinkedBlockingQueue<>();
+    private ExecutorService writer;
+    private volatile boolean isClosed = false;
+
+    public LogMailboxStore(Config config) {
+        this(Paths.get(config.getString("mailbox.store.dir")),
+                config.getInt("mailbox.store.segment.size", 16 * 1024 * 1024));
+    }
+
+    /**
+     * @param directory the directory holding the segment files, created if necessary
+     * @param segmentSize the size in bytes after which a new segment is started
+     */
+    public LogMailboxStore(Path directory, long segmentSize) {
+        this.directory = directory;
+        // a segment is mapped as a whole
+        this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Replays the existing segments to rebuild the index, opens a new segment for writing and starts the writer
+     * thread.
+     *
+     * @throws IOException if the directory cannot be read or the new segment cannot be created
+     */
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+        int lastSegment = 0;
+        for (int number : listSegments()) {
+            lastSegment = number;
+            liveCounts.put(number, 0);
+            replay(number);
+        }
+        for (Inbox inbox : inboxes.values()) {
+            for (Entry entry : inbox.entries.values()) {
+                liveCounts.merge(entry.segment, 1, Integer::sum);
+            }
+        }
+        openSegment(lastSegment + 1);
+        compact();
+
+        writer = Executors.newSingleThreadExecutor();
+        writer.execute(this::write);
+    }
+
+    @Override
+    public int add(String user, Message message) throws IOException {
+        Inbox inbox = inboxes.computeIfAbsent(user, name -> new Inbox());
+        int id = inbox.lastId.incrementAndGet();
+        Message summary = new Message();
+        summary.setSender(message.getSender());
+        summary.setSubject(message.getSubject());
+        await(enqueue(new PendingWrite(encode(MESSAGE, user, id, message), MESSAGE, inbox, id, summary, null)));
+        return id;
+    }
+
+    @Override
+    public Message get(String user, int id) throws IOException {
+        Inbox inbox = inboxes.get(user);
+        Entry entry = inbox != null ? inbox.entries.get(id) : null;
+        return entry != null ? decode(read(entry)) : null;
+    }
+
+    @Override
+    public NavigableMap<Integer, Message> list(String user) {
+        NavigableMap<Integer, Message> messages = new TreeMap<>();
+        Inbox inbox = inboxes.get(user);
+        if (inbox != null) {
+            for (Map.Entry<Integer, Entry> entry : inbox.entries.entrySet()) {
+                messages.put(entry.getKey(), entry.getValue().summary);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean delete(String user, int id) throws IOException {
+        Inbox inbox = inboxes.get(user);
+        Entry entry = inbox != null ? inbox.entries.remove(id) : null;
+        if (entry == null) {
+            return false;
+        }
+        await(enqueue(new PendingWrite(encode(DELETE, user, id, null), DELETE, inbox, id, null, entry)));
+        return true;
+    }
+
+    private CompletableFuture<Void> enqueue(PendingWrite pending) {
+        if (isClosed) {
+            pending.stored.completeExceptionally(new IOException("Mailbox store is closed"));
+        } else {
+            writes.add(pending);
+        }
+        return pending.stored;
+    }
+
+    private static void await(CompletableFuture<Void> stored) throws IOException {
+        try {
+            stored.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while storing", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void write() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(writes.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            writes.drainTo(batch);
+            boolean stop = batch.remove(STOP);
+            IOException failure = null;
+            try {
+                for (PendingWrite pending : batch) {
+                    if (segmentBytes > 0 && segmentBytes + pending.size() > segmentSize) {
+                        segment.force(false);
+                        segment.close();
+                        openSegment(segmentNumber + 1);
+                    }
+                    long offset = segmentBytes;
+                    long remaining = pending.size();
+                    while (remaining > 0) {
+                        long written = segment.write(pending.record);
+                        segmentBytes += written;
+                        remaining -= written;
+                    }
+                    if (pending.type == MESSAGE) {
+                        pending.entry = new Entry(segmentNumber, offset, (int) (segmentBytes - offset), pending.summary);
+                    }
+                }
+                // one fsync for all records of the batch
+                segment.force(false);
+                // the index only refers to records on disk
+                for (PendingWrite pending : batch) {
+                    if (pending.type == MESSAGE) {
+                        pending.inbox.entries.put(pending.id, pending.entry);
+                        liveCounts.merge(pending.entry.segment, 1, Integer::sum);
+                    } else {
+                        liveCounts.merge(pending.entry.segment, -1, Integer::sum);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error IOException while writing mailbox store: " + e);
+                failure = e;
+                // a record may have been written partially, replay stops there, so later records go to a new segment
+                rollAfterFailure();
+            }
+            for (PendingWrite pending : batch) {
+                if (failure == null) {
+                    pending.stored.complete(null);
+                } else {
+                    pending.stored.completeExceptionally(failure);
+                }
+            }
+            batch.clear();
+            try {
+                compact();
+            } catch (IOException e) {
+                // the records are on disk, an old segment is only kept longer than necessary
+                System.err.println("Error IOException while compacting mailbox store: " + e);
+            }
+            if (stop) {
+                break;
+            }
+        }
+    }
+
+    private void rollAfterFailure() {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            // Ignored because we cannot handle it
+        }
+        try {
+            openSegment(segmentNumber + 1);
+        } catch (IOException e) {
+            // the next batch fails on the closed segment and tries again
+            System.err.println("Error IOException while starting mailbox segment: " + e);
+        }
+    }
+
+    /**
+     * Deletes segments from the oldest on, as long as all of their messages have been deleted. Keeping the order
+     * guarantees that a delete record is never dropped while the message it refers to is still on disk.
+     */
+    private void compact() throws IOException {
+        for (Map.Entry<Integer, Integer> entry : liveCounts.entrySet()) {
+            if (entry.getKey() == segmentNumber || entry.getValue() > 0) {
+                break;
+            }
+            // unmapped by the garbage collector once no message body refers to it any more
+            mappings.remove(entry.getKey());
+            Files.deleteIfExists(segmentPath(entry.getKey()));
+            liveCounts.remove(entry.getKey());
+        }
+    }
+
+    private void openSegment(int number) throws IOException {
+        segmentNumber = number;
+        segmentBytes = 0;
+        segment = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        liveCounts.put(number, 0);
+    }
+
+    private void replay(int number) throws IOException {
+        Path path = segmentPath(number);
+        long remaining = Files.size(path);
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (remaining >= RecordBuffer.HEADER_SIZE) {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xffffffffL;
+                remaining -= RecordBuffer.HEADER_SIZE;
+                if (length < 9 || length > remaining) {
+                    // the server stopped in the middle of writing the last record
+                    System.err.println("Ignoring incomplete tail of mailbox segment " + number);
+                    return;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                remaining -= length;
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (crc.getValue() != checksum) {
+                    System.err.println("Ignoring corrupt tail of mailbox segment " + number);
+                    return;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                String user = readString(record);
+                int id = record.readInt();
+                Inbox inbox = inboxes.computeIfAbsent(user, name -> new Inbox());
+                inbox.lastId.accumulateAndGet(id, Math::max);
+                if (type == MESSAGE) {
+                    Message summary = new Message();
+                    summary.setSender(readString(record));
+                    int recipients = record.readInt();
+                    for (int i = 0; i < recipients; i++) {
+                        readString(record);
+                    }
+                    summary.setSubject(readString(record));
+                    inbox.entries.put(id, new Entry(number, offset, RecordBuffer.HEADER_SIZE + length, summary));
+                } else if (type == DELETE) {
+                    inbox.entries.remove(id);
+                }
+                offset += RecordBuffer.HEADER_SIZE + length;
+            }
+        }
+    }
+
+    /**
+     * @return the record of the entry as a slice of the mapped segment, without copying it
+     */
+    private ByteBuffer read(Entry entry) throws IOException {
+        long end = entry.offset + entry.length;
+        MappedByteBuffer mapping = mappings.get(entry.segment);
+        if (mapping == null || mapping.capacity() < end) {
+            mapping = map(entry.segment, end);
+        }
+        ByteBuffer record = mapping.duplicate();
+        record.limit((int) end).position((int) entry.offset);
+        return record.slice();
+    }
+
+    /**
+     * Maps the segment as far as it has been written. The current segment is mapped again whenever a record beyond
+     * its last mapping is read.
+     */
+    private synchronized MappedByteBuffer map(int number, long end) throws IOException {
+        MappedByteBuffer mapping = mappings.get(number);
+        if (mapping != null && mapping.capacity() >= end) {
+            return mapping;
+        }
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapping.capacity() < end) {
+            throw new IOException("Mailbox segment " + number + " ends within a record");
+        }
+        mappings.put(number, mapping);
+        return mapping;
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> numbers.add(Integer.parseInt(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Encodes a record as the buffers to write one after the other: the header and fields, and the body, which is
+     * last and not copied.
+     */
+    private static ByteBuffer[] encode(byte type, String user, int id, Message message) throws IOException {
+        RecordBuffer head = new RecordBuffer(256);
+        DataOutputStream out = new DataOutputStream(head);
+        // length and checksum, filled in by seal
+        out.writeLong(0);
+        out.writeByte(type);
+        writeString(out, user);
+        out.writeInt(id);
+        if (message == null) {
+            out.flush();
+            return new ByteBuffer[]{head.seal()};
+        }
+        ByteBuffer content = message.getBody();
+        writeString(out, message.getSender());
+        out.writeInt(message.getRecipients().size());
+        for (String recipient : message.getRecipients()) {
+            writeString(out, recipient);
+        }
+        writeString(out, message.getSubject());
+        writeString(out, message.getHash());
+        out.writeInt(content == null ? -1 : content.remaining());
+        out.flush();
+        ByteBuffer headBuffer = head.seal(content);
+        if (content == null) {
+            return new ByteBuffer[]{headBuffer};
+        }
+        return new ByteBuffer[]{headBuffer, content};
+    }
+
+    /**
+     * Decodes a record read from a segment. The record has been checked when the segment was replayed or written, so
+     * its checksum is not computed again; the body stays a slice of the record.
+     */
+    private static Message decode(ByteBuffer record) throws IOException {
+        try {
+            int length = record.getInt();
+            record.getInt();
+            if (length != record.remaining()) {
+                throw new IOException("Corrupt mailbox record");
+            }
+            record.get();
+            readString(record);
+            record.getInt();
+            Message message = new Message();
+            message.setSender(readString(record));
+            int recipients = record.getInt();
+            for (int i = 0; i < recipients; i++) {
+                message.getRecipients().add(readString(record));
+            }
+            message.setSubject(readString(record));
+            message.setHash(readString(record));
+            int contentLength = record.getInt();
+            if (contentLength >= 0) {
+                // the body is the end of the record
+                record.position(record.limit() - contentLength);
+                message.setBody(record.slice());
+            }
+            return message;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt mailbox record", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        ByteBuffer bytes = in.duplicate();
+        bytes.limit(bytes.position() + length);
+        in.position(in.position() + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int getSegmentCount() {
+        return liveCounts.size();
+    }
+
+    /**
+     * Writes the records queued so far, stops the writer thread and closes the current segment.
+     */
+    @Override
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        if (writer != null) {
+            writes.add(STOP);
+            writer.shutdown();
+            try {
+                writer.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // records queued while closing are not written, their sessions must not wait for them
+        for (PendingWrite pending : writes) {
+            if (pending != STOP) {
+                pending.stored.completeExceptionally(new IOException("Mailbox store is closed"));
+            }
+        }
+        writes.clear();
+        try {
+            if (segment != null) {
+                segment.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error IOException while closing mailbox segment: " + e);
+        }
+    }
+
+    /**
+     * The index of the inbox of a user.
+     */
+    private static class Inbox {
+        // the last id handed out, also of messages deleted since
+        private AtomicInteger lastId = new AtomicInteger();
+        private ConcurrentSkipListMap<Integer, Entry> entries = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Where a message is stored, with the fields needed to list it.
+     */
+    private static class Entry {
+        private int segment;
+        private long offset;
+        private int length;
+        private Message summary;
+
+        Entry(int segment, long offset, int length, Message summary) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.summary = summary;
+        }
+    }
+
+    private static class PendingWrite {
+        private ByteBuffer[] record;
+        private byte type;
+        private Inbox inbox;
+        private int id;
+        private Message summary;
+        // the entry of a deleted message, or of a message once it has been written
+        private Entry entry;
+        private CompletableFuture<Void> stored = new CompletableFuture<>();
+
+        PendingWrite(ByteBuffer[] record, byte type, Inbox inbox, int id, Message summary, Entry entry) {
+            this.record = record;
+            this.type = type;
+            this.inbox = inbox;
+            this.id = id;
+            this.summary = summary;
+            this.entry = entry;
+        }
+
+        long size() {
+            long size = 0;
+            for (ByteBuffer part : record) {
+                size += part.remaining();
+            }
+            return size;
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package dslab.mailbox;
 
-import dslab.User;
+import dslab.UserDirectory;
 import dslab.protocol.DMAP;
 import dslab.util.Config;
 import dslab.util.Keys;
@@ -10,16 +10,19 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.util.Base64;
-import java.util.List;
 
 public class MailboxAccess implements Runnable {
 
     private Config userConfig;
+    private OutputStream out;
     private PrintWriter writer;
     private BufferedReader reader;
-    private List<User> users;
+    private UserDirectory users;
+    private MailboxStore store;
     private Socket client;
     private String componentId;
     private boolean secure;
@@ -30,11 +33,12 @@ public class MailboxAccess implements Runnable {
     private IvParameterSpec ivSpec;
 
 
-    public MailboxAccess(Socket socket, Config userConfig, List<User> users, String componentId)  {
+    public MailboxAccess(Socket socket, Config userConfig, UserDirectory users, MailboxStore store, String componentId)  {
         this.componentId = componentId;
         this.client = socket;
         this.userConfig = userConfig;
         this.users = users;
+        this.store = store;
         this.secure = false;
         this.aesEncryption = false;
     }
@@ -42,11 +46,12 @@ public class MailboxAccess implements Runnable {
     @Override
     public void run() {
         try {
-            writer = new PrintWriter(client.getOutputStream(), true);
+            out = new BufferedOutputStream(client.getOutputStream());
+            writer = new PrintWriter(out, true);
             reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
             String request;
             String response;
-            DMAP dmap = new DMAP(userConfig, users, componentId);
+            DMAP dmap = new DMAP(userConfig, users, store, componentId);
             // ok DMAP2.0
             response = dmap.processInput("");
             send(response);
@@ -71,6 +76,11 @@ public class MailboxAccess implements Runnable {
                             continue;
                         }
                     }
+                    ByteBuffer[] message = dmap.processShow(request);
+                    if (message != null) {
+                        send(message);
+                        continue;
+                    }
                     response = dmap.processInput(request);
                     send(response);
                 }
@@ -160,6 +170,31 @@ public class MailboxAccess implements Runnable {
         writer.println(s);
     }
 
+    /**
+     * Writes a response given as buffers, followed by a line separator like {@link #send(String)}. Content that is
+     * not on the heap, e.g. a memory mapped message body, is copied in chunks.
+     */
+    public void send(ByteBuffer[] response) throws IOException {
+        byte[] chunk = null;
+        for (ByteBuffer part : response) {
+            if (part.hasArray()) {
+                out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+                continue;
+            }
+            ByteBuffer content = part.duplicate();
+            if (chunk == null) {
+                chunk = new byte[8192];
+            }
+            while (content.hasRemaining()) {
+                int length = Math.min(chunk.length, content.remaining());
+                content.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+        out.write(System.lineSeparator().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
     public String sendAndRead(String s) throws IOException {
         send(s);
         return read();
@@ -1,34 +1,34 @@
 package dslab.mailbox;
 
 import dslab.Message;
-import dslab.User;
+import dslab.UserDirectory;
 import dslab.protocol.DMTP;
 import dslab.util.Config;
+import dslab.util.LineReader;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class MailboxHandler implements Runnable {
 
     private Socket socket;
-    private List<User> users;
-    private Config userConfig;
+    private UserDirectory users;
+    private MailboxStore store;
+    private Config config;
     private String domain;
     private PrintWriter writer;
-    private BufferedReader reader;
+    private LineReader reader;
     private DMTP dmtp;
 
-    public MailboxHandler(Socket socket, List<User> users, Config userConfig, String domain) {
+    public MailboxHandler(Socket socket, UserDirectory users, MailboxStore store, Config config, String domain) {
         this.socket = socket;
         this.users = users;
-        this.userConfig = userConfig;
+        this.store = store;
+        this.config = config;
         this.domain = domain;
     }
 
@@ -36,22 +36,38 @@ public class MailboxHandler implements Runnable {
     public void run() {
         try {
             while (true) {
-                this.reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-                this.writer = new PrintWriter(this.socket.getOutputStream(), true);
                 String request = "";
                 String response = "";
-                dmtp = new DMTP();
+                dmtp = new DMTP(config);
+                this.reader = new LineReader(this.socket.getInputStream(), dmtp.getMaxLineLength());
+                this.writer = new PrintWriter(this.socket.getOutputStream(), true);
                 // ok DMTP
-                response = dmtp.validateRequest(request, userConfig.listKeys(), domain);
+                response = dmtp.validateRequest(request, users.getAccounts(), domain);
                 writer.println(response);
-                while ((request = reader.readLine()) != null) {
-                    response = dmtp.validateRequest(request, userConfig.listKeys(), domain);
+                while (true) {
+                    try {
+                        ByteBuffer line = reader.readLine();
+                        if (line == null) {
+                            break;
+                        }
+                        request = StandardCharsets.UTF_8.decode(line).toString();
+                        response = dmtp.validateRequest(request, users.getAccounts(), domain);
+                    } catch (LineReader.LineTooLongException e) {
+                        request = "";
+                        response = dmtp.rejectLine();
+                    }
+                    if (response == null) {
+                        // a line of a data block, answered once the block is complete
+                        response = "";
+                        continue;
+                    }
+                    if (request.equals("send") && response.equals("ok") && !send()) {
+                        response = "error could not store message";
+                    }
                     writer.println(response);
                     System.out.println(request + " " + response);
                     if (response.equals("ok bye") || response.equals("error protocol error")) {
                         break;
-                    } else if (request.equals("send") && response.equals("ok")) {
-                        send();
                     }
                     //System.out.println("From mailbox: Request: " + request + ", Response " + response);
                 }
@@ -68,49 +84,39 @@ public class MailboxHandler implements Runnable {
         }
     }
 
-    private void send(){
-        Message message = dmtp.getMessage();
-        String recipient = message.getRecipients().get(0);
-        Matcher matcher = Pattern.compile("(\\w+@" + domain + ")").matcher(recipient);
-        while (matcher.find()) {
-            String recipientName = matcher.group();
-            recipientName = recipientName.split("@")[0];
-            User newUser = new User(recipientName);
-            if (!userConfig.containsKey(recipientName)) {
-                continue;
-            }
-            if (!checkIfUserExists(recipientName)) {
-                users.add(newUser);
-            }
-            addMessageToUser(recipientName, message);
-        }
-    }
-
-    private boolean checkIfUserExists(String name) {
-        if (users != null) {
-            for (User user : users) {
-                if (user.getName().equals(name)) {
-                    return true;
-                }
-            }
+    /**
+     * Delivers the message of the transaction before the client is told that it has been accepted.
+     *
+     * @return false if the message could not be stored
+     */
+    private boolean send() {
+        try {
+            deliver(users, store, domain, dmtp.getMessage());
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error IOException while storing message: " + e);
+            return false;
         }
-        return false;
     }
 
-    private void addMessageToUser(String name, Message message) {
-        if (users != null) {
-            for (User user : users) {
-                if (user.getName().equals(name)) {
-                    synchronized (users) {
-                        user.addMessage(message);
-                    }
-                    break;
-                }
+    /**
+     * Adds the message to the inbox of every recipient of the domain that has an account. Only deliveries to the same
+     * user share state, and the stores need no lock across users, so sessions deliver in parallel.
+     */
+    static void deliver(UserDirectory users, MailboxStore store, String domain, Message message) throws IOException {
+        // the same scan that validated the recipients, the domain is matched literally
+        for (String recipientName : DMTP.localNamesOf(message.getRecipients().get(0), domain)) {
+            if (!users.isAccount(recipientName)) {
+                continue;
             }
+            store.add(recipientName, message);
         }
     }
 
     private void close() {
+        if (dmtp != null) {
+            dmtp.close();
+        }
         if (socket != null && !socket.isClosed()) {
             try {
                 writer.close();
@@ -1,8 +1,9 @@
 package dslab.mailbox;
 
-import dslab.User;
+import dslab.UserDirectory;
 import dslab.protocol.DMAP;
 import dslab.util.Config;
+import dslab.util.HandlerExecutors;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -11,28 +12,28 @@ import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class MailboxListenerThread implements Runnable {
 
     private ServerSocket serverSocket;
-    private List<User> users;
+    private UserDirectory users;
+    private MailboxStore store;
     private Config mailboxConfig;
     private Config userConfig;
     private String domain;
     private ExecutorService executor;
     private String componentId;
 
-    public MailboxListenerThread(ServerSocket serverSocket, List<User> users, Config mailboxConfig, Config userConfig, String componentId) {
+    public MailboxListenerThread(ServerSocket serverSocket, UserDirectory users, MailboxStore store, Config mailboxConfig, Config userConfig, String componentId) {
         this.componentId = componentId;
         this.serverSocket = serverSocket;
         this.users = users;
+        this.store = store;
         this.mailboxConfig = mailboxConfig;
         this.userConfig = userConfig;
         this.domain = mailboxConfig.getString("domain");
-        this.executor = Executors.newCachedThreadPool();
+        this.executor = HandlerExecutors.newPerTaskExecutor(mailboxConfig);
     }
 
     @Override
@@ -40,10 +41,10 @@ public class MailboxListenerThread implements Runnable {
         try {
             while (true) {
                 if (serverSocket.getLocalPort() == mailboxConfig.getInt("dmtp.tcp.port")) {
-                    MailboxHandler mailboxHandler = new MailboxHandler(serverSocket.accept(), users, userConfig, domain);
+                    MailboxHandler mailboxHandler = new MailboxHandler(serverSocket.accept(), users, store, mailboxConfig, domain);
                     executor.execute(mailboxHandler);
                 } else if (serverSocket.getLocalPort() == mailboxConfig.getInt("dmap.tcp.port")) {
-                    MailboxAccess mailboxAccess = new MailboxAccess(serverSocket.accept(), userConfig, users, componentId);
+                    MailboxAccess mailboxAccess = new MailboxAccess(serverSocket.accept(), userConfig, users, store, componentId);
                     executor.execute(mailboxAccess);
                 }
             }
@@ -6,9 +6,6 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -16,7 +13,7 @@ import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
-import dslab.User;
+import dslab.UserDirectory;
 import dslab.nameserver.AlreadyRegisteredException;
 import dslab.nameserver.INameserverRemote;
 import dslab.nameserver.InvalidDomainException;
@@ -31,7 +28,8 @@ public class MailboxServer implements IMailboxServer, Runnable {
     private ServerSocket listenerDMAP;
     private ExecutorService executor;
     private boolean isShutdown = false;
-    private List<User> users;
+    private UserDirectory users;
+    private MailboxStore store;
     private String componentId;
 
 
@@ -48,7 +46,7 @@ public class MailboxServer implements IMailboxServer, Runnable {
         this.config = config;
         this.userConfig = new Config(componentId.replaceAll("mailbox", "users"));
         this.executor = Executors.newCachedThreadPool();
-        this.users = Collections.synchronizedList(new ArrayList<>());
+        this.users = new UserDirectory(userConfig);
         shell = new Shell(in, out);
         shell.register(this);
         shell.setPrompt(componentId + "> ");
@@ -56,13 +54,14 @@ public class MailboxServer implements IMailboxServer, Runnable {
 
     @Override
     public void run() {
+        openStore();
         try {
             this.listenerDMTP = new ServerSocket(config.getInt("dmtp.tcp.port"));
             this.listenerDMAP = new ServerSocket(config.getInt("dmap.tcp.port"));
             executor.execute(shell);
             System.out.println("Server is up!");
-            executor.execute(new MailboxListenerThread(listenerDMTP, users, config, userConfig, componentId));
-            executor.execute(new MailboxListenerThread(listenerDMAP, users, config, userConfig, componentId));
+            executor.execute(new MailboxListenerThread(listenerDMTP, users, store, config, userConfig, componentId));
+            executor.execute(new MailboxListenerThread(listenerDMAP, users, store, config, userConfig, componentId));
         } catch (SocketException e) {
 
         } catch (IOException e) {
@@ -72,6 +71,25 @@ public class MailboxServer implements IMailboxServer, Runnable {
         registerToNameserver();
     }
 
+    /**
+     * Opens the store of the inboxes: the log in the configured {@code mailbox.store.dir}, whose messages are recovered,
+     * or the heap if no directory is configured or the log cannot be opened.
+     */
+    private void openStore() {
+        if (config.containsKey("mailbox.store.dir")) {
+            LogMailboxStore log = new LogMailboxStore(config);
+            try {
+                log.open();
+                store = log;
+                return;
+            } catch (IOException e) {
+                System.err.println("Error IOException while opening mailbox store, messages are kept in memory only: " + e);
+                log.close();
+            }
+        }
+        store = new MemoryMailboxStore(users);
+    }
+
     public void registerToNameserver(){
         //failing to register does not stop the server from working
         String domain = config.getString("domain");
@@ -118,6 +136,9 @@ public class MailboxServer implements IMailboxServer, Runnable {
         if (!executor.isShutdown()) {
             executor.shutdown();
         }
+        if (store != null) {
+            store.close();
+        }
         System.out.println("Exiting mailbox server shell.");
         throw new StopShellException();
     }
@@ -0,0 +1,52 @@
+package dslab.mailbox;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+
+import dslab.Message;
+
+/**
+ * Keeps the messages of the users of a mailbox server: the DMTP sessions add the messages they accept, the DMAP
+ * sessions list, show and delete them. Message ids are allocated per user in ascending order and are not reused.
+ * Implementations are safe to use from all sessions at once.
+ */
+public interface MailboxStore {
+
+    /**
+     * Adds a message to the inbox of a user.
+     *
+     * @param user the name of the user
+     * @param message the message
+     * @return the id of the message in the inbox
+     * @throws IOException if the message could not be stored
+     */
+    int add(String user, Message message) throws IOException;
+
+    /**
+     * @param user the name of the user
+     * @param id the id of the message
+     * @return the complete message, or null if the inbox has no message with this id
+     * @throws IOException if the message could not be read
+     */
+    Message get(String user, int id) throws IOException;
+
+    /**
+     * @param user the name of the user
+     * @return the messages of the inbox by id, providing at least their sender and subject
+     * @throws IOException if the inbox could not be read
+     */
+    NavigableMap<Integer, Message> list(String user) throws IOException;
+
+    /**
+     * @param user the name of the user
+     * @param id the id of the message
+     * @return true if the message was deleted, false if the inbox has no message with this id
+     * @throws IOException if the deletion could not be stored
+     */
+    boolean delete(String user, int id) throws IOException;
+
+    /**
+     * Releases the resources of the store. Messages added so far are kept.
+     */
+    void close();
+}
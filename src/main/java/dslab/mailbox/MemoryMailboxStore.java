@@ -0,0 +1,48 @@
+package dslab.mailbox;
+
+import java.util.Collections;
+import java.util.NavigableMap;
+
+import dslab.Message;
+import dslab.User;
+import dslab.UserDirectory;
+
+/**
+ * Keeps the messages in the {@link User} objects of the directory, on the heap. The inboxes are lost when the server
+ * stops.
+ */
+public class MemoryMailboxStore implements MailboxStore {
+
+    private UserDirectory users;
+
+    public MemoryMailboxStore(UserDirectory users) {
+        this.users = users;
+    }
+
+    @Override
+    public int add(String user, Message message) {
+        return users.getOrCreate(user).addMessage(message);
+    }
+
+    @Override
+    public Message get(String user, int id) {
+        User owner = users.get(user);
+        return owner != null ? owner.getMessages().get(id) : null;
+    }
+
+    @Override
+    public NavigableMap<Integer, Message> list(String user) {
+        User owner = users.get(user);
+        return owner != null ? Collections.unmodifiableNavigableMap(owner.getMessages()) : Collections.emptyNavigableMap();
+    }
+
+    @Override
+    public boolean delete(String user, int id) {
+        User owner = users.get(user);
+        return owner != null && owner.getMessages().remove(id) != null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
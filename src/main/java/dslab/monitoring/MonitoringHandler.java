@@ -7,6 +7,9 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class MonitoringHandler implements Runnable {
 
+    // maximum payload of a UDP datagram
+    private static final int MAX_PACKET_SIZE = 65507;
+
     private DatagramSocket datagramSocket;
     private ConcurrentHashMap<String, Integer> addresses;
     private ConcurrentHashMap<String, Integer> servers;
@@ -19,7 +22,7 @@ public class MonitoringHandler implements Runnable {
 
     @Override
     public void run() {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[MAX_PACKET_SIZE];
         DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
         while (true) {
             try {
@@ -28,24 +31,23 @@ public class MonitoringHandler implements Runnable {
                 System.err.println("Error IOException while receiving packet: " + e);
                 break;
             }
+            // a packet carries one or more records, one per line: <transfer server> <sender> [<count>]
             String request = new String(packet.getData(), 0, packet.getLength());
-            String[] parts = request.split("\\s");
-            if (parts.length == 2) {
-                // remove 0 bytes from packet
-                String transferServer = parts[0].trim();
-                String clientAddress = parts[1].trim();
-                if (servers.containsKey(transferServer)) {
-                    int count = servers.get(transferServer);
-                    servers.put(transferServer, count + 1);
-                } else {
-                    servers.put(transferServer, 1);
+            for (String record : request.split("\n")) {
+                String[] parts = record.trim().split("\\s+");
+                if (parts.length < 2 || parts.length > 3) {
+                    continue;
                 }
-                if (addresses.containsKey(clientAddress)) {
-                    int count = addresses.get(clientAddress);
-                    addresses.put(clientAddress, count + 1);
-                } else {
-                    addresses.put(clientAddress, 1);
+                int count = 1;
+                if (parts.length == 3) {
+                    try {
+                        count = Integer.parseInt(parts[2]);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
                 }
+                servers.merge(parts[0], count, Integer::sum);
+                addresses.merge(parts[1], count, Integer::sum);
             }
         }
     }
@@ -7,13 +7,13 @@ import java.net.SocketException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
 import dslab.util.Config;
+import dslab.util.HandlerExecutors;
 
 public class MonitoringServer implements IMonitoringServer {
 
@@ -34,7 +34,7 @@ public class MonitoringServer implements IMonitoringServer {
      */
     public MonitoringServer(String componentId, Config config, InputStream in, PrintStream out) {
         this.config = config;
-        this.executor = Executors.newCachedThreadPool();
+        this.executor = HandlerExecutors.newPerTaskExecutor(config);
         this.addresses = new ConcurrentHashMap<>();
         this.servers = new ConcurrentHashMap<>();
         shell = new Shell(in, out);
@@ -2,9 +2,13 @@ package dslab.protocol;
 
 import dslab.Message;
 import dslab.User;
+import dslab.UserDirectory;
+import dslab.mailbox.MailboxStore;
 import dslab.util.Config;
 
-import java.util.List;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 public class DMAP {
@@ -15,15 +19,17 @@ public class DMAP {
     private static final int SECURE = 3;
     private int state = WAITING;
     private Config userConfig;
-    private List<User> users;
+    private UserDirectory users;
+    private MailboxStore store;
     private User loggedInUser;
     private boolean secure;
     private String componentId;
 
-    public DMAP(Config userConfig, List<User> users, String componentId) {
+    public DMAP(Config userConfig, UserDirectory users, MailboxStore store, String componentId) {
         this.componentId = componentId;
         this.userConfig = userConfig;
         this.users = users;
+        this.store = store;
         this.secure = false;
     }
 
@@ -31,31 +37,99 @@ public class DMAP {
         return userConfig.getString(user).equals(password);
     }
 
-    private String show(int id) {
-        if (!loggedInUser.getMessages().containsKey(id)) {
-            return "error unknown message id";
+    /**
+     * Answers a show request with the bytes of the message instead of a {@link String}, so the body is written as the
+     * store hands it out, e.g. as a slice of a memory mapped segment, without being decoded or copied to the heap.
+     * The message is looked up once, errors are answered here as well.
+     *
+     * @param request the request
+     * @return the response as buffers to write one after the other, or null if the request is not a show of the
+     *         logged in user; {@link #processInput(String)} answers those
+     */
+    public ByteBuffer[] processShow(String request) {
+        if (state != COMMANDS || loggedInUser == null || !request.startsWith("show")) {
+            return null;
+        }
+        String[] parts = request.split("\\s");
+        if (parts.length <= 1) {
+            return errorResponse("error no message id given");
+        } else if (parts.length > 2) {
+            return errorResponse("error to many parameter");
+        }
+        int id = parseId(parts[1]);
+        if (id == 0) {
+            return errorResponse("error unknown message id");
+        }
+        Message message;
+        try {
+            message = store.get(loggedInUser.getName(), id);
+        } catch (IOException e) {
+            System.err.println("Error IOException while reading message: " + e);
+            return errorResponse("error could not read message");
+        }
+        return message != null ? showResponse(message) : errorResponse("error unknown message id");
+    }
+
+    private static ByteBuffer[] errorResponse(String error) {
+        return new ByteBuffer[]{StandardCharsets.UTF_8.encode(error)};
+    }
+
+    /**
+     * @return the message id, or 0 (never handed out) if the value is not a number
+     */
+    private static int parseId(String value) {
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return 0;
         }
-        Message message = loggedInUser.getMessages().get(id);
+    }
+
+    /**
+     * @return the fields before the body, the body and the fields after it
+     */
+    private static ByteBuffer[] showResponse(Message message) {
         String recipients = "";
         for (String recipient : message.getRecipients()) {
             recipients = recipients + recipient;
         }
         recipients = recipients.replace(" ", ",");
-        //System.out.println(recipients);
-        //recipients = recipients.substring(0, recipients.length() - 2);
-        return "from " + message.getSender() + System.lineSeparator() +
+        ByteBuffer head = StandardCharsets.UTF_8.encode("from " + message.getSender() + System.lineSeparator() +
                 "to " + recipients + System.lineSeparator() +
                 "subject " + message.getSubject() + System.lineSeparator() +
-                "data " + message.getData() + System.lineSeparator() +
+                "data ");
+        ByteBuffer body = message.getBody();
+        ByteBuffer tail = StandardCharsets.UTF_8.encode(System.lineSeparator() +
                 "hash " + ((message.getHash() != null) ? message.getHash() : "") + System.lineSeparator() +
-                "ok";
+                "ok");
+        return new ByteBuffer[]{head, body != null ? body : ByteBuffer.allocate(0), tail};
+    }
+
+    private String list() {
+        String list = "";
+        try {
+            for (Map.Entry<Integer, Message> entry : store.list(loggedInUser.getName()).entrySet()) {
+                list = list + entry.getKey() + " " + entry.getValue().getSender() + " " + entry.getValue().getSubject() + System.lineSeparator();
+            }
+        } catch (IOException e) {
+            System.err.println("Error IOException while listing messages: " + e);
+            return "error could not read messages";
+        }
+        return list != "" ? list.trim() + System.lineSeparator() + "ok" : "ok";
     }
 
     private String delete(int id) {
-        if (!loggedInUser.getMessages().containsKey(id)) {
+        if (id == 0) {
             return "error unknown message id";
         }
-        loggedInUser.getMessages().remove(id);
+        try {
+            if (!store.delete(loggedInUser.getName(), id)) {
+                return "error unknown message id";
+            }
+        } catch (IOException e) {
+            System.err.println("Error IOException while deleting message: " + e);
+            return "error could not delete message";
+        }
         return "ok";
     }
 
@@ -99,16 +173,7 @@ public class DMAP {
                     }
                     if (login(name, password)) {
                         state = COMMANDS;
-                        for (User user : users) {
-                            if (user.getName().equals(name)) {
-                                loggedInUser = user;
-                                break;
-                            }
-                        }
-                        if (loggedInUser == null) {
-                            loggedInUser = new User(name);
-                            users.add(loggedInUser);
-                        }
+                        loggedInUser = users.getOrCreate(name);
                         return "ok";
                     } else {
                         return "error wrong password";
@@ -130,19 +195,13 @@ public class DMAP {
                 return "no data available for this user";
             }
             if (request.equalsIgnoreCase("list")) {
-                String list = "";
-                    for (Map.Entry<Integer, Message> entry : loggedInUser.getMessages().entrySet()) {
-                        list = list + entry.getKey() + " " + entry.getValue().getSender() + " " + entry.getValue().getSubject() + System.lineSeparator();
-                    }
-                return list != "" ? list.trim() + System.lineSeparator() + "ok" : "ok";
+                return list();
             } else if (request.startsWith("show")) {
-                parts = request.split("\\s");
-                if (parts.length <= 1) {
-                    return "error no message id given";
-                } else if (parts.length > 2) {
-                    return "error to many parameter";
+                StringBuilder response = new StringBuilder();
+                for (ByteBuffer part : processShow(request)) {
+                    response.append(StandardCharsets.UTF_8.decode(part));
                 }
-                return show(Integer.parseInt(parts[1]));
+                return response.toString();
             } else if (request.startsWith("delete")) {
                 parts = request.split("\\s");
                 if (parts.length <= 1) {
@@ -150,7 +209,7 @@ public class DMAP {
                 } else if (parts.length > 2) {
                     return "error to many parameter";
                 }
-                return delete(Integer.parseInt(parts[1]));
+                return delete(parseId(parts[1]));
             }
         }
         return "error unknown error";
@@ -1,22 +1,72 @@
 package dslab.protocol;
 
 import dslab.Message;
+import dslab.util.BodyBuffer;
+import dslab.util.Config;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class DMTP {
 
     private static final int WAITING = 0;
     private static final int BEGIN = 1;
     private static final int EMAIL = 2;
+    // inside a data block, every line up to a single "." is part of the body
+    private static final int DATA = 3;
+    // the requests of a transaction
+    private static final int CMD_UNKNOWN = 0;
+    private static final int CMD_BEGIN = 1;
+    private static final int CMD_SUBJECT = 2;
+    private static final int CMD_FROM = 3;
+    private static final int CMD_DATA = 4;
+    private static final int CMD_TO = 5;
+    private static final int CMD_HASH = 6;
+    private static final int CMD_SEND = 7;
+    private static final int DEFAULT_SPOOL_THRESHOLD = 64 * 1024;
+    private static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+    private static final int DEFAULT_MAX_BODY_SIZE = 10 * 1024 * 1024;
+    private static final int DEFAULT_MAX_RECIPIENTS = 100;
     private int state = WAITING;
     private Message message;
+    private int spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
+    private Path spoolDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+    private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+    private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private int maxRecipients = DEFAULT_MAX_RECIPIENTS;
+    private BodyBuffer body;
+    // the response to the data block once its body could not be kept, null while the body is fine
+    private String bodyError;
 
     public DMTP() {
-        message = new Message();
+        this.message = new Message();
+    }
+
+    /**
+     * Reads the body spooling settings {@code data.spool.threshold} and {@code data.spool.dir} and the limits
+     * {@code dmtp.max.line.length}, {@code dmtp.max.body.size} and {@code dmtp.max.recipients} of the component.
+     */
+    public DMTP(Config config) {
+        this();
+        this.spoolThreshold = config.getInt("data.spool.threshold", DEFAULT_SPOOL_THRESHOLD);
+        this.spoolDirectory = Paths.get(config.getString("data.spool.dir", spoolDirectory.toString()));
+        this.maxLineLength = config.getInt("dmtp.max.line.length", DEFAULT_MAX_LINE_LENGTH);
+        this.maxBodySize = config.getInt("dmtp.max.body.size", DEFAULT_MAX_BODY_SIZE);
+        this.maxRecipients = config.getInt("dmtp.max.recipients", DEFAULT_MAX_RECIPIENTS);
+    }
+
+    /**
+     * @return the maximum length in bytes of a request line, longer lines have to be rejected by the reader
+     */
+    public int getMaxLineLength() {
+        return maxLineLength;
     }
 
     public Message getMessage() {
@@ -25,7 +75,10 @@ public class DMTP {
 
     public String processInput(String request) {
         String response = null;
-        String[] parts;
+        String value;
+        if (state == DATA) {
+            return processDataLine(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)));
+        }
         if (request.equalsIgnoreCase("quit")) {
             return "ok bye";
         }
@@ -40,79 +93,234 @@ public class DMTP {
                 response = "error protocol error";
             }
         } else if (state == EMAIL) {
-            if (request.startsWith("subject ")) {
-                parts = request.split("^(subject )");
-                if (parts.length <= 1) {
-                    return "error no subject";
-                }
-                message.setSubject(parts[1]);
-                response = "ok";
-            } else if (request.startsWith("from ")){
-                parts = request.split("^(from )");
-                if (parts.length <= 1) {
-                    return "error no sender";
-                }
-                Matcher matcher = Pattern.compile("(^\\w+@\\w+\\.\\w+$)").matcher(parts[1]);
-                if (matcher.find()) {
-                    message.setSender(matcher.group());
-                } else {
-                    return "error invalid sender";
-                }
-                response = "ok";
-            } else if (request.startsWith("data")){
-                parts = request.split("^(data )");
-                if (parts.length <= 1) {
-                    return  "error no content";
-                }
-                message.setData(parts[1]);
-                response = "ok";
-            } else if (request.startsWith("to ")) {
-                parts = request.split("^(to )");
-                if (parts.length <= 1) {
-                    return "error no recipients";
-                }
-                if (!message.getRecipients().isEmpty()) {
-                    message.getRecipients().clear();
-                }
-                Matcher matcher = Pattern.compile("(\\w+@\\w+\\.\\w+)").matcher(parts[1]);
-                while (matcher.find()) {
-                    message.getRecipients().add(matcher.group());
-                }
-                if (message.getRecipients().size() < 1) {
-                    return "error no recipients";
-                }
-                response = "ok " + message.getRecipients().size();
-            } else if (request.startsWith("hash")) {
-                parts = request.split("^(hash )");
-                if (parts.length <= 1) {
-                    return "error no hash value";
-                }
-                message.setHash(parts[1]);
-                response = "ok";
-            } else if (request.equalsIgnoreCase("send")) {
-                if (message.getSubject() == null || message.getSubject().equalsIgnoreCase("")) {
-                    return "error no subject";
-                }
-                if (message.getSender() == null || message.getSender().equalsIgnoreCase("")) {
-                    return "error no sender";
-                }
-                if (message.getData() == null || message.getData().equalsIgnoreCase("")) {
-                    return "error no content";
-                }
-                if (message.getRecipients() == null || message.getRecipients().size() < 1) {
-                    return "error no recipients";
-                }
-                response = "ok";
-            } else {
-                return "error protocol error";
+            switch (commandOf(request)) {
+                case CMD_BEGIN:
+                    // a session may carry several transactions, each begin starts a new message
+                    message = new Message();
+                    response = "ok";
+                    break;
+                case CMD_SUBJECT:
+                    value = argumentOf(request, "subject ");
+                    if (value == null) {
+                        return "error no subject";
+                    }
+                    message.setSubject(value);
+                    response = "ok";
+                    break;
+                case CMD_FROM:
+                    value = argumentOf(request, "from ");
+                    if (value == null) {
+                        return "error no sender";
+                    }
+                    if (!isAddress(value)) {
+                        return "error invalid sender";
+                    }
+                    message.setSender(value);
+                    response = "ok";
+                    break;
+                case CMD_DATA:
+                    if (request.length() == 4) {
+                        return startData();
+                    }
+                    value = argumentOf(request, "data ");
+                    if (value == null) {
+                        return "error no content";
+                    }
+                    if (isTooLarge(value)) {
+                        return "error message too large";
+                    }
+                    message.setData(value);
+                    response = "ok";
+                    break;
+                case CMD_TO:
+                    value = argumentOf(request, "to ");
+                    if (value == null) {
+                        return "error no recipients";
+                    }
+                    if (!message.getRecipients().isEmpty()) {
+                        message.getRecipients().clear();
+                    }
+                    int from = 0;
+                    int end;
+                    for (int at = value.indexOf('@'); at >= 0; at = value.indexOf('@', Math.max(at + 1, from))) {
+                        int start = localPartStart(value, at, from);
+                        if (start == at || (end = domainEnd(value, at + 1)) < 0) {
+                            continue;
+                        }
+                        if (message.getRecipients().size() == maxRecipients) {
+                            message.getRecipients().clear();
+                            return "error too many recipients";
+                        }
+                        message.getRecipients().add(value.substring(start, end));
+                        from = end;
+                    }
+                    if (message.getRecipients().size() < 1) {
+                        return "error no recipients";
+                    }
+                    response = "ok " + message.getRecipients().size();
+                    break;
+                case CMD_HASH:
+                    value = argumentOf(request, "hash ");
+                    if (value == null) {
+                        return "error no hash value";
+                    }
+                    message.setHash(value);
+                    response = "ok";
+                    break;
+                case CMD_SEND:
+                    if (message.getSubject() == null || message.getSubject().equalsIgnoreCase("")) {
+                        return "error no subject";
+                    }
+                    if (message.getSender() == null || message.getSender().equalsIgnoreCase("")) {
+                        return "error no sender";
+                    }
+                    if (!message.hasData()) {
+                        return "error no content";
+                    }
+                    if (message.getRecipients() == null || message.getRecipients().size() < 1) {
+                        return "error no recipients";
+                    }
+                    response = "ok";
+                    break;
+                default:
+                    return "error protocol error";
             }
         }
         return response;
     }
 
+    /**
+     * Processes a {@code data} request whose content is still in its received UTF-8 encoding. The bytes are kept as
+     * they are, so that they can be forwarded without being decoded and encoded again.
+     *
+     * @param content the bytes following {@code "data "}
+     */
+    public String processData(ByteBuffer content) {
+        if (state != EMAIL) {
+            return processInput("data");
+        }
+        if (!content.hasRemaining()) {
+            return "error no content";
+        }
+        if (content.remaining() > maxBodySize) {
+            return "error message too large";
+        }
+        message.setBody(content);
+        return "ok";
+    }
+
+    /**
+     * Starts a data block: the following lines, up to a line holding a single {@code "."}, form the body of the
+     * message. A body line starting with a dot is sent with an additional leading dot. No response is sent before the
+     * terminating dot.
+     */
+    private String startData() {
+        body = new BodyBuffer(spoolThreshold, spoolDirectory);
+        bodyError = null;
+        state = DATA;
+        return null;
+    }
+
+    /**
+     * @return true if the next request line is part of a data block
+     */
+    public boolean isReadingData() {
+        return state == DATA;
+    }
+
+    /**
+     * Processes a line of a data block as received, without decoding it.
+     *
+     * @param line the line without terminator, between position and limit
+     * @return null for a body line, the response to the block for the terminating dot
+     */
+    public String processDataLine(ByteBuffer line) {
+        if (line.remaining() == 1 && line.get(line.position()) == '.') {
+            state = EMAIL;
+            return finishData();
+        }
+        if (line.hasRemaining() && line.get(line.position()) == '.') {
+            // remove the dot added by the sender
+            line = line.duplicate();
+            line.position(line.position() + 1);
+        }
+        if (bodyError == null && body.size() + line.remaining() + 1 > maxBodySize) {
+            // the rest of the block is read and discarded, the error is reported at its end
+            failBody("error message too large");
+        }
+        if (bodyError == null) {
+            try {
+                body.appendLine(line);
+            } catch (IOException e) {
+                System.err.println("Error IOException while spooling message body: " + e);
+                failBody("error could not store message");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rejects a request line the reader dropped because it exceeded the maximum line length. Inside a data block the
+     * body is dropped and the error is reported at the end of the block.
+     *
+     * @return the response to send back, or null inside a data block
+     */
+    public String rejectLine() {
+        if (state == DATA) {
+            if (bodyError == null) {
+                failBody("error line too long");
+            }
+            return null;
+        }
+        return "error line too long";
+    }
+
+    private void failBody(String error) {
+        bodyError = error;
+        body.discard();
+    }
+
+    private String finishData() {
+        if (bodyError != null) {
+            body = null;
+            return bodyError;
+        }
+        try {
+            if (body.size() == 0) {
+                body.discard();
+                return "error no content";
+            }
+            message.setBody(body.finish());
+            return "ok";
+        } catch (IOException e) {
+            System.err.println("Error IOException while spooling message body: " + e);
+            return "error could not store message";
+        } finally {
+            body = null;
+        }
+    }
+
+    private boolean isTooLarge(String data) {
+        // a char takes at most three bytes in UTF-8, only count the bytes if the data may be too large
+        return data.length() > maxBodySize / 3 && data.getBytes(StandardCharsets.UTF_8).length > maxBodySize;
+    }
+
+    /**
+     * Releases the body of an unfinished data block, e.g. because the connection was closed in the middle of it.
+     */
+    public void close() {
+        if (body != null) {
+            body.discard();
+            body = null;
+        }
+    }
+
     public String validateRequest(String request, Set<String> users, String domain) {
         String response = null;
-        String[] parts;
+        String value;
+        if (state == DATA) {
+            return processDataLine(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)));
+        }
         if (request.equalsIgnoreCase("quit")) {
             return "ok bye";
         }
@@ -127,65 +335,200 @@ public class DMTP {
                 response = "error protocol error";
             }
         } else if (state == EMAIL) {
-            if (request.startsWith("subject ")) {
-                parts = request.split("^(subject )");
-                if (parts.length <= 1) {
-                    return "error no subject";
-                }
-                message.setSubject(parts[1]);
-                response = "ok";
-            } else if (request.startsWith("from ")){
-                parts = request.split("^(from )");
-                if (parts.length <= 1) {
-                    return "error no sender";
-                }
-                message.setSender(parts[1]);
-                response = "ok";
-            } else if (request.startsWith("data")) {
-                parts = request.split("^(data )");
-                if (parts.length <= 1) {
-                    return "error no content";
-                }
-                message.setData(parts[1]);
-                response = "ok";
-            } else if (request.startsWith("to ")) {
-                parts = request.split("^(to )");
-                if (parts.length <= 1) {
-                    return "error no recipients";
-                }
-                if (!message.getRecipients().isEmpty()) {
-                    message.getRecipients().clear();
-                }
-                Matcher matcher = Pattern.compile("(\\w+@" + domain + ")").matcher(parts[1]);
-                String unknownRecipients = "error unknown recipient ";
-                message.getRecipients().add(parts[1].replace(",", ""));
-                while (matcher.find()) {
-                    String recipient = matcher.group();
-//                    message.getRecipients().add(recipient);
-                    if (!users.contains(recipient.split("@")[0])) {
-                        unknownRecipients = unknownRecipients  + recipient.split("@" + domain)[0] + " ";
+            switch (commandOf(request)) {
+                case CMD_BEGIN:
+                    // a session may carry several transactions, each begin starts a new message
+                    message = new Message();
+                    response = "ok";
+                    break;
+                case CMD_SUBJECT:
+                    value = argumentOf(request, "subject ");
+                    if (value == null) {
+                        return "error no subject";
                     }
-                }
-                if (!unknownRecipients.equals("error unknown recipient ")) {
-                    return unknownRecipients;
-                }
-                if (message.getRecipients().size() < 1) {
-                    return "error no valid recipients";
-                }
-                response = "ok " + message.getRecipients().size();
-            } else if (request.contains("hash ")) {
-                parts = request.split("^(hash )");
-                if (parts.length <= 1) {
-                    return "error no hash value";
-                }
-                message.setHash(parts[1]);
-                response = "ok";
-            } else if (request.equalsIgnoreCase("send")) {
-                response = "ok";
-            } else {
-                return "error protocol error";
+                    message.setSubject(value);
+                    response = "ok";
+                    break;
+                case CMD_FROM:
+                    value = argumentOf(request, "from ");
+                    if (value == null) {
+                        return "error no sender";
+                    }
+                    message.setSender(value);
+                    response = "ok";
+                    break;
+                case CMD_DATA:
+                    if (request.length() == 4) {
+                        return startData();
+                    }
+                    value = argumentOf(request, "data ");
+                    if (value == null) {
+                        return "error no content";
+                    }
+                    if (isTooLarge(value)) {
+                        return "error message too large";
+                    }
+                    message.setData(value);
+                    response = "ok";
+                    break;
+                case CMD_TO:
+                    value = argumentOf(request, "to ");
+                    if (value == null) {
+                        return "error no recipients";
+                    }
+                    if (!message.getRecipients().isEmpty()) {
+                        message.getRecipients().clear();
+                    }
+                    StringBuilder unknownRecipients = null;
+                    message.getRecipients().add(value.replace(",", ""));
+                    int recipientCount = 0;
+                    int from = 0;
+                    for (int at = value.indexOf('@'); at >= 0; at = value.indexOf('@', Math.max(at + 1, from))) {
+                        int start = localPartStart(value, at, from);
+                        if (start == at || !value.startsWith(domain, at + 1)) {
+                            continue;
+                        }
+                        if (++recipientCount > maxRecipients) {
+                            message.getRecipients().clear();
+                            return "error too many recipients";
+                        }
+                        String name = value.substring(start, at);
+                        if (!users.contains(name)) {
+                            if (unknownRecipients == null) {
+                                unknownRecipients = new StringBuilder("error unknown recipient ");
+                            }
+                            unknownRecipients.append(name).append(' ');
+                        }
+                        from = at + 1 + domain.length();
+                    }
+                    if (unknownRecipients != null) {
+                        return unknownRecipients.toString();
+                    }
+                    if (message.getRecipients().size() < 1) {
+                        return "error no valid recipients";
+                    }
+                    response = "ok " + message.getRecipients().size();
+                    break;
+                case CMD_HASH:
+                    value = argumentOf(request, "hash ");
+                    if (value == null) {
+                        return "error no hash value";
+                    }
+                    message.setHash(value);
+                    response = "ok";
+                    break;
+                case CMD_SEND:
+                    response = "ok";
+                    break;
+                default:
+                    return "error protocol error";
             }
         }
         return response;
     }
+
+    /**
+     * Identifies the request of a transaction by its keyword, looking at the first character and comparing the rest in
+     * place, so that no regular expression runs and nothing is allocated.
+     */
+    private static int commandOf(String request) {
+        if (request.isEmpty()) {
+            return CMD_UNKNOWN;
+        }
+        switch (request.charAt(0)) {
+            case 'b':
+            case 'B':
+                return request.equalsIgnoreCase("begin") ? CMD_BEGIN : CMD_UNKNOWN;
+            case 's':
+            case 'S':
+                if (request.startsWith("subject ")) {
+                    return CMD_SUBJECT;
+                }
+                return request.equalsIgnoreCase("send") ? CMD_SEND : CMD_UNKNOWN;
+            case 'f':
+                return request.startsWith("from ") ? CMD_FROM : CMD_UNKNOWN;
+            case 'd':
+                // "data" alone starts a data block, anything else starting with data is a (possibly empty) data line
+                return request.startsWith("data") ? CMD_DATA : CMD_UNKNOWN;
+            case 't':
+                return request.startsWith("to ") ? CMD_TO : CMD_UNKNOWN;
+            case 'h':
+                return request.startsWith("hash") ? CMD_HASH : CMD_UNKNOWN;
+            default:
+                return CMD_UNKNOWN;
+        }
+    }
+
+    /**
+     * @return the text following the keyword, or null if the request does not start with the keyword or has no text
+     */
+    private static String argumentOf(String request, String keyword) {
+        if (!request.startsWith(keyword) || request.length() == keyword.length()) {
+            return null;
+        }
+        return request.substring(keyword.length());
+    }
+
+    /**
+     * Scans a recipient list the way the recipients of a {@code to} request are validated.
+     *
+     * @param value the recipients, e.g. {@code arthur@earth.planet zaphod@univer.ze}
+     * @param domain the domain whose recipients to return, matched literally
+     * @return the names of the recipients of the domain, in recipient order
+     */
+    public static List<String> localNamesOf(String value, String domain) {
+        List<String> names = new ArrayList<>();
+        int from = 0;
+        for (int at = value.indexOf('@'); at >= 0; at = value.indexOf('@', Math.max(at + 1, from))) {
+            int start = localPartStart(value, at, from);
+            if (start == at || !value.startsWith(domain, at + 1)) {
+                continue;
+            }
+            names.add(value.substring(start, at));
+            from = at + 1 + domain.length();
+        }
+        return names;
+    }
+
+    /**
+     * @return true if the whole value is a mail address of the form {@code name@domain.tld}
+     */
+    private static boolean isAddress(String value) {
+        int at = value.indexOf('@');
+        return at > 0 && localPartStart(value, at, 0) == 0 && domainEnd(value, at + 1) == value.length();
+    }
+
+    /**
+     * @return the start of the run of word characters ending right before the {@code @}, not before {@code from};
+     *         {@code at} itself if there is none
+     */
+    private static int localPartStart(String value, int at, int from) {
+        int start = at;
+        while (start > from && isWordChar(value.charAt(start - 1))) {
+            start--;
+        }
+        return start;
+    }
+
+    /**
+     * @return the end of the {@code domain.tld} starting at the given index, or -1 if there is none
+     */
+    private static int domainEnd(String value, int index) {
+        int dot = index;
+        while (dot < value.length() && isWordChar(value.charAt(dot))) {
+            dot++;
+        }
+        if (dot == index || dot == value.length() || value.charAt(dot) != '.') {
+            return -1;
+        }
+        int end = dot + 1;
+        while (end < value.length() && isWordChar(value.charAt(end))) {
+            end++;
+        }
+        return end == dot + 1 ? -1 : end;
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
 }
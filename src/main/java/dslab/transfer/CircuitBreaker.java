@@ -0,0 +1,145 @@
+package dslab.transfer;
+
+import dslab.util.Config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breakers for the mailbox servers the transfer server forwards to, keyed by <code>host:port</code>. After a
+ * number of consecutive failed deliveries the circuit of a server opens and deliveries to it are short-circuited into
+ * the retry queue instead of waiting for another connect timeout. Once the open time has passed the circuit is
+ * half-open: a limited number of trial deliveries is let through, and the first outcome closes the circuit again or
+ * keeps it open for another period.
+ */
+public class CircuitBreaker {
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private int failureThreshold;
+    private long openTime;
+    private int halfOpenTrials;
+
+    private AtomicLong shortCircuited = new AtomicLong();
+
+    public CircuitBreaker(Config config) {
+        this(config.getInt("breaker.failure.threshold", 3),
+                config.getInt("breaker.open.ms", 10000),
+                config.getInt("breaker.half.open.trials", 1));
+    }
+
+    /**
+     * @param failureThreshold the number of consecutive failures that opens a circuit
+     * @param openTime the time (in milliseconds) an open circuit rejects deliveries before trials are let through
+     * @param halfOpenTrials the number of concurrent trial deliveries of a half-open circuit
+     */
+    public CircuitBreaker(int failureThreshold, long openTime, int halfOpenTrials) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+        this.halfOpenTrials = Math.max(1, halfOpenTrials);
+    }
+
+    /**
+     * Asks whether a delivery to the given mailbox server may be attempted. Every granted attempt must be followed by
+     * {@link #succeeded(String)} or {@link #failed(String)}.
+     *
+     * @param address the DMTP socket address of the mailbox server
+     * @return true if the circuit is closed or a half-open trial was granted
+     */
+    public boolean tryAcquire(String address) {
+        Circuit circuit = circuits.get(address);
+        if (circuit == null || circuit.tryAcquire()) {
+            return true;
+        }
+        shortCircuited.incrementAndGet();
+        return false;
+    }
+
+    public void succeeded(String address) {
+        Circuit circuit = circuits.get(address);
+        if (circuit != null) {
+            circuit.succeeded();
+        }
+    }
+
+    public void failed(String address) {
+        circuits.computeIfAbsent(address, k -> new Circuit()).failed();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the circuit of the given server lets trials through again, or 0
+     * if the circuit is closed
+     */
+    public long getRetryAt(String address) {
+        Circuit circuit = circuits.get(address);
+        return circuit != null ? circuit.getRetryAt() : 0;
+    }
+
+    public int getOpenCount() {
+        int open = 0;
+        for (Circuit circuit : circuits.values()) {
+            if (circuit.getRetryAt() != 0) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    public long getShortCircuited() {
+        return shortCircuited.get();
+    }
+
+    private class Circuit {
+        private int state = CLOSED;
+        private int failures;
+        private int trials;
+        private long openedAt;
+
+        synchronized boolean tryAcquire() {
+            if (state == OPEN && System.nanoTime() - openedAt >= openTime) {
+                state = HALF_OPEN;
+                trials = 0;
+            }
+            if (state == CLOSED) {
+                return true;
+            }
+            if (state == HALF_OPEN && trials < halfOpenTrials) {
+                trials++;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void succeeded() {
+            state = CLOSED;
+            failures = 0;
+            trials = 0;
+        }
+
+        synchronized void failed() {
+            failures++;
+            if (state == HALF_OPEN || failures >= failureThreshold) {
+                // a failed trial keeps the circuit open for another period
+                state = OPEN;
+                openedAt = System.nanoTime();
+                trials = 0;
+            }
+        }
+
+        synchronized long getRetryAt() {
+            if (state == CLOSED) {
+                return 0;
+            }
+            if (state == HALF_OPEN) {
+                // the trials in progress decide, wait for another period rather than short-circuiting again right away
+                return System.nanoTime() + openTime;
+            }
+            return openedAt + openTime;
+        }
+    }
+}
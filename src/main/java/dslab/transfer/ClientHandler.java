@@ -1,67 +1,51 @@
 package dslab.transfer;
 
-import dslab.Message;
-import dslab.nameserver.INameserverRemote;
-import dslab.protocol.DMTP;
-import dslab.util.Config;
+import dslab.util.LineReader;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.ByteBuffer;
 
 public class ClientHandler implements Runnable {
 
     private Socket client;
     private PrintWriter writer;
-    private BufferedReader reader;
-    private Config config;
-    private DMTP dmtp;
-    private BlockingQueue<Message> messages;
-    private ExecutorService executorMailbox;
+    private LineReader reader;
+    private ClientSession session;
+    private volatile boolean finished;
 
-    private INameserverRemote rootNameserverRemote;
-
-    public ClientHandler(Socket client, Config config, BlockingQueue<Message> messages, INameserverRemote rootNameserverRemote) {
+    public ClientHandler(Socket client, DeliveryEngine deliveryEngine, RateLimiter rateLimiter) {
         try {
-            this.config = config;
             this.client = client;
-            this.messages = messages;
-            this.reader = new BufferedReader(new InputStreamReader(this.client.getInputStream()));
+            this.session = new ClientSession(deliveryEngine, rateLimiter, client.getInetAddress().getHostAddress(), true);
+            this.reader = new LineReader(this.client.getInputStream(), session.getMaxLineLength());
             this.writer = new PrintWriter(this.client.getOutputStream(), true);
-            executorMailbox = Executors.newCachedThreadPool();
-
-            this.rootNameserverRemote = rootNameserverRemote;
         } catch (IOException e) {
             System.err.println("Error creating reader/writer: " + e);
         }
     }
 
-    public void forwardMessage(){
-        executorMailbox.execute(new MailboxConnection(config, messages, rootNameserverRemote));
-    }
-
     @Override
     public void run() {
-        String request;
-        String response;
+        ByteBuffer request;
         try {
-            dmtp = new DMTP();
-            // ok DMTP
-            response = dmtp.processInput("");
-            writer.println(response);
+            writer.println(session.greet());
 
-            while ((request = reader.readLine()) != null) {
-                response = dmtp.processInput(request);
-                writer.println(response);
-                if (request.equalsIgnoreCase("send") && response.equals("ok")) {
-                    // producer, waits if necessary
-                    messages.put(dmtp.getMessage());
-                    forwardMessage();
-                } else if (response.equals("ok bye") || response.equals("error protocol error")) {
-                    break;
+            while (!session.isClosed()) {
+                String response;
+                try {
+                    request = reader.readLine();
+                    if (request == null) {
+                        break;
+                    }
+                    // waits until an accepted message has been spooled
+                    response = session.handle(request).join();
+                } catch (LineReader.LineTooLongException e) {
+                    response = session.rejectLine();
+                }
+                if (response != null) {
+                    writer.println(response);
                 }
             }
         } catch (SocketException e) {
@@ -72,13 +56,31 @@ public class ClientHandler implements Runnable {
             System.err.println("Error InterruptedException");
         } finally {
             close();
+            session.close();
+            finished = true;
         }
     }
 
-    private void close() {
-        if (!executorMailbox.isShutdown()) {
-            executorMailbox.shutdown();
+    /**
+     * @return true once the handler has stopped serving the client
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Closes the connection unless a transaction is in progress.
+     */
+    public void closeIfIdle() {
+        if (session.isIdle()) {
+            close();
         }
+    }
+
+    /**
+     * Closes the connection, the handler stops as soon as its pending read fails.
+     */
+    public void close() {
         if (client != null && !client.isClosed()) {
             try {
                 writer.close();
@@ -90,4 +92,3 @@ public class ClientHandler implements Runnable {
         }
     }
 }
-
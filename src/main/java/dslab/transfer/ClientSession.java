@@ -0,0 +1,164 @@
+package dslab.transfer;
+
+import dslab.protocol.DMTP;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The protocol side of one client connection to the transfer server: drives the {@link DMTP} state machine and hands
+ * complete messages over to the delivery engine. It does not care how the connection itself is served, so it is used
+ * by the blocking {@link ClientHandler} as well as by the selector based {@link NioAcceptor}.
+ */
+public class ClientSession {
+
+    private static final byte[] DATA_PREFIX = "data ".getBytes(StandardCharsets.US_ASCII);
+
+    private DMTP dmtp;
+    private DeliveryEngine deliveryEngine;
+    private RateLimiter rateLimiter;
+    private String remoteAddress;
+    private boolean mayBlock;
+    private volatile boolean closed;
+    // between an accepted begin and the end of the transaction
+    private volatile boolean inTransaction;
+
+    /**
+     * @param deliveryEngine the engine accepted messages are submitted to
+     * @param rateLimiter limits the messages per sender and per client address
+     * @param remoteAddress the IP address of the client
+     * @param mayBlock whether the calling thread may wait for a free queue slot; event loop threads must not
+     */
+    public ClientSession(DeliveryEngine deliveryEngine, RateLimiter rateLimiter, String remoteAddress, boolean mayBlock) {
+        this.dmtp = new DMTP(deliveryEngine.getConfig());
+        this.deliveryEngine = deliveryEngine;
+        this.rateLimiter = rateLimiter;
+        this.remoteAddress = remoteAddress;
+        this.mayBlock = mayBlock;
+    }
+
+    /**
+     * @return the greeting to send as soon as the client connected
+     */
+    public String greet() {
+        // ok DMTP
+        return dmtp.processInput("");
+    }
+
+    /**
+     * Processes one request line of the client as received. The content of a {@code data} request is kept in the
+     * received bytes, which the message takes over, so the line must not be reused by the caller; every other request
+     * is decoded and handled by {@link #handle(String)}.
+     *
+     * @param line the UTF-8 request without line terminator, between position and limit
+     * @return the response to send back, null for the lines of a data block that are not answered; for an accepted
+     *         message it completes once the message has been spooled
+     */
+    public CompletableFuture<String> handle(ByteBuffer line) throws InterruptedException {
+        if (dmtp.isReadingData()) {
+            // a line of a data block, the body is collected as received
+            return CompletableFuture.completedFuture(dmtp.processDataLine(line));
+        }
+        if (startsWith(line, DATA_PREFIX) && line.remaining() > DATA_PREFIX.length) {
+            ByteBuffer content = line.duplicate();
+            content.position(line.position() + DATA_PREFIX.length);
+            return CompletableFuture.completedFuture(dmtp.processData(content.slice()));
+        }
+        return handle(StandardCharsets.UTF_8.decode(line).toString());
+    }
+
+    private static boolean startsWith(ByteBuffer line, byte[] prefix) {
+        if (line.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line.get(line.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Processes one request line of the client.
+     *
+     * @param request the request without line terminator
+     * @return the response to send back; for an accepted message it completes once the message has been spooled
+     */
+    public CompletableFuture<String> handle(String request) throws InterruptedException {
+        if (dmtp.isReadingData()) {
+            return CompletableFuture.completedFuture(dmtp.processInput(request));
+        }
+        if (request.equalsIgnoreCase("begin") && deliveryEngine.isDraining()) {
+            // the server is shutting down, transactions in progress may finish but no new one is started
+            closed = true;
+            return CompletableFuture.completedFuture("error server shutting down");
+        }
+        String response = dmtp.processInput(request);
+        if (response == null) {
+            // a data block has been started, it is answered once it is complete
+            return CompletableFuture.completedFuture(null);
+        }
+        if (request.equalsIgnoreCase("begin") && response.equals("ok")) {
+            inTransaction = true;
+        } else if (request.equalsIgnoreCase("send") && response.equals("ok")) {
+            inTransaction = false;
+            // idle sessions have been closed when the drain started, a session finishing its transaction afterwards is
+            // ended right after the response instead of waiting for the client to quit
+            closed = deliveryEngine.isDraining();
+            if (!rateLimiter.tryAcquire(remoteAddress, dmtp.getMessage().getSender())) {
+                // rejected right away, a client sending too fast must not hold queue slots others wait for
+                return CompletableFuture.completedFuture("error rate limited");
+            }
+            // producer, rejects the message if the delivery engine stays saturated
+            return deliveryEngine.submit(dmtp.getMessage(), mayBlock).handle((queued, e) -> {
+                if (e != null) {
+                    System.err.println("Error while spooling message: " + e);
+                    return "error could not store message";
+                }
+                return queued ? "ok" : "error server busy";
+            });
+        } else if (response.equals("ok bye") || response.equals("error protocol error")) {
+            closed = true;
+        }
+        return CompletableFuture.completedFuture(response);
+    }
+
+    /**
+     * Answers a request line that exceeded the maximum line length and was dropped by the reader.
+     *
+     * @return the response to send back, null inside a data block
+     */
+    public String rejectLine() {
+        return dmtp.rejectLine();
+    }
+
+    /**
+     * @return the maximum length in bytes of a request line
+     */
+    public int getMaxLineLength() {
+        return dmtp.getMaxLineLength();
+    }
+
+    /**
+     * Releases what the session holds, e.g. the spooled body of an unfinished data block.
+     */
+    public void close() {
+        dmtp.close();
+    }
+
+    /**
+     * @return true if the session has ended and the connection should be closed after the last response
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return true if no transaction is in progress, so the connection can be closed without losing a message
+     */
+    public boolean isIdle() {
+        return !inTransaction;
+    }
+}
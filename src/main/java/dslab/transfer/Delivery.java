@@ -0,0 +1,128 @@
+package dslab.transfer;
+
+import dslab.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A message on its way through the transfer server: the recipient domains it still has to be forwarded to and the
+ * number of delivery attempts that already failed for them.
+ */
+public class Delivery {
+
+    private Message message;
+    // the recipients of the message grouped by domain, in recipient order
+    private Map<String, List<String>> recipientsByDomain = new LinkedHashMap<>();
+    private Set<String> domains;
+    private int attempts;
+    private int lane;
+    // completes once the message is in the spool, a message that could not be stored is never forwarded
+    private CompletableFuture<Void> stored = CompletableFuture.completedFuture(null);
+
+    public Delivery(Message message) {
+        this(message, DeliveryQueue.INTERACTIVE);
+    }
+
+    /**
+     * @param lane the {@link DeliveryQueue} lane the message is queued in
+     */
+    public Delivery(Message message, int lane) {
+        this.message = message;
+        this.lane = lane;
+        for (String recipient : message.getRecipients()) {
+            recipientsByDomain.computeIfAbsent(domainOf(recipient), k -> new ArrayList<>()).add(recipient);
+        }
+        this.domains = new LinkedHashSet<>(recipientsByDomain.keySet());
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the recipient domains the message has not been forwarded to yet, in recipient order
+     */
+    public Set<String> getDomains() {
+        return domains;
+    }
+
+    /**
+     * @return the recipients of the message in the given domain
+     */
+    public List<String> getRecipients(String domain) {
+        return recipientsByDomain.getOrDefault(domain, Collections.emptyList());
+    }
+
+    void setStored(CompletableFuture<Void> stored) {
+        this.stored = stored;
+    }
+
+    /**
+     * Waits until the message has been written to the spool.
+     *
+     * @return true if the message may be forwarded, false if it could not be stored and the client got an error
+     */
+    boolean awaitStored() {
+        try {
+            stored.get();
+            return true;
+        } catch (ExecutionException | CancellationException e) {
+            return false;
+        } catch (InterruptedException e) {
+            // shutting down, the message stays in the spool
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public int getLane() {
+        return lane;
+    }
+
+    /**
+     * @return true if the message is a delivery failure generated by the transfer server
+     */
+    public boolean isBounce() {
+        return lane == DeliveryQueue.BOUNCE;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Records a failed attempt; the next attempt only covers the given domains.
+     *
+     * @param failedDomains the domains the message could not be forwarded to
+     */
+    public void failed(Set<String> failedDomains) {
+        this.domains = new LinkedHashSet<>(failedDomains);
+        this.attempts++;
+    }
+
+    /**
+     * Restores the progress recorded for the message before a restart, so that it is only forwarded to the domains
+     * still pending.
+     *
+     * @param pendingDomains the domains the message had not been forwarded to yet
+     * @param attempts the number of attempts that had failed
+     */
+    public void resume(Set<String> pendingDomains, int attempts) {
+        this.domains = new LinkedHashSet<>(recipientsByDomain.keySet());
+        this.domains.retainAll(pendingDomains);
+        this.attempts = attempts;
+    }
+
+    public static String domainOf(String recipient) {
+        return recipient.substring(recipient.indexOf('@') + 1);
+    }
+}
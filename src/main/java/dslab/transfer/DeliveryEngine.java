@@ -0,0 +1,369 @@
+package dslab.transfer;
+
+import dslab.Message;
+import dslab.nameserver.INameserverRemote;
+import dslab.util.Config;
+import dslab.util.HandlerExecutors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Server-wide delivery engine of the transfer server. A fixed number of long-lived workers drain the shared
+ * {@link DeliveryQueue}, whose priority lanes keep bulk mail from delaying interactive mail and delivery failures, and
+ * forward the messages to the responsible mailbox servers. A worker collects up to a batch of messages (waiting at
+ * most the linger time for more to arrive), so that messages for the same mailbox server can share one connection.
+ * Producers (the client handlers) are slowed down when their lane is full and rejected once the configured enqueue
+ * timeout expires. If a spool directory is configured, every queued message is also written to the
+ * {@link MessageSpool}, and messages not delivered before a crash are queued again on the next start. Deliveries that
+ * failed because a server could not be reached are handed to the {@link RetryScheduler} and queued again once their
+ * backoff has expired.
+ */
+public class DeliveryEngine {
+
+    private Config config;
+    private DeliveryQueue messages;
+    // senders whose mail is queued in the bulk lane
+    private Pattern bulkSenders;
+    private ExecutorService workers;
+    private ExecutorService fanOut;
+    private MailboxConnectionPool connectionPool;
+    private DomainResolver domainResolver;
+    private MessageSpool spool;
+    private RetryScheduler retryScheduler;
+    private CircuitBreaker circuitBreaker;
+    private MonitoringReporter monitoringReporter;
+    private int workerCount;
+    private long enqueueTimeout;
+    private int batchSize;
+    private long batchLinger;
+
+    private AtomicInteger busyWorkers = new AtomicInteger();
+    // deliveries queued or being worked on, counted from before they are queued until a worker has finished them
+    private AtomicInteger inFlight = new AtomicInteger();
+    private AtomicLong delivered = new AtomicLong();
+    private AtomicLong rejected = new AtomicLong();
+    private volatile boolean isDraining = false;
+    private volatile boolean isShutdown = false;
+
+    public DeliveryEngine(Config config, INameserverRemote rootNameserverRemote) {
+        this.config = config;
+        this.messages = new DeliveryQueue(config);
+        String bulk = config.getString("lane.bulk.senders", "").trim();
+        this.bulkSenders = bulk.isEmpty() ? null : Pattern.compile(bulk);
+        this.workerCount = config.getInt("delivery.workers", 4);
+        this.enqueueTimeout = config.getInt("queue.enqueue.timeout.ms", 5000);
+        this.batchSize = Math.max(1, config.getInt("delivery.batch.size", 50));
+        this.batchLinger = config.getInt("delivery.batch.linger.ms", 5);
+        this.workers = HandlerExecutors.newFixedExecutor(config, workerCount);
+        this.fanOut = HandlerExecutors.newFixedExecutor(config, Math.max(1, config.getInt("delivery.fanout.threads", 8)));
+        this.connectionPool = new MailboxConnectionPool(config);
+        this.domainResolver = new DomainResolver(config, rootNameserverRemote);
+        this.retryScheduler = new RetryScheduler(config);
+        this.circuitBreaker = new CircuitBreaker(config);
+        this.monitoringReporter = new MonitoringReporter(config);
+        if (config.containsKey("spool.dir")) {
+            this.spool = new MessageSpool(config);
+        }
+    }
+
+    /**
+     * Starts the workers and queues the messages left in the spool by the previous run.
+     */
+    public void start() {
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::work);
+        }
+        retryScheduler.start(this::enqueueNow);
+        if (spool == null) {
+            return;
+        }
+        try {
+            List<Message> recovered = spool.recover();
+            if (!recovered.isEmpty()) {
+                System.out.println("Recovered " + recovered.size() + " message(s) from the spool");
+            }
+            for (Message message : recovered) {
+                Delivery delivery = new Delivery(message, laneOf(message));
+                MessageSpool.DeferredState state = spool.takeDeferred(message);
+                if (state != null) {
+                    delivery.resume(state.getDomains(), state.getAttempts());
+                }
+                enqueue(delivery, Long.MAX_VALUE);
+            }
+        } catch (IOException e) {
+            System.err.println("Error IOException while recovering spool, messages are kept in memory only: " + e);
+            spool = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands a message over to the delivery workers. Blocks while the queue is full, but at most for the configured
+     * enqueue timeout. The returned future completes once the message is also stored in the spool, so the client is
+     * only acknowledged for messages that survive a crash.
+     *
+     * @param message the message to deliver
+     * @param mayBlock whether to wait for a free queue slot at all
+     * @return a future yielding true if the message was queued, false if the engine is saturated or shut down; it
+     * completes exceptionally if the message could not be written to the spool
+     */
+    public CompletableFuture<Boolean> submit(Message message, boolean mayBlock) throws InterruptedException {
+        if (isShutdown) {
+            rejected.incrementAndGet();
+            return CompletableFuture.completedFuture(false);
+        }
+        // the spool record is queued before the message, so its done marker can never overtake it
+        CompletableFuture<Void> stored = spool != null ? spool.append(message) : CompletableFuture.completedFuture(null);
+        Delivery delivery = new Delivery(message, laneOf(message));
+        // a worker taking the delivery waits for the spool, so a message the client gets an error for is never forwarded
+        delivery.setStored(stored);
+        if (!enqueue(delivery, mayBlock ? TimeUnit.MILLISECONDS.toNanos(enqueueTimeout) : 0)) {
+            if (spool != null) {
+                spool.complete(message);
+            }
+            rejected.incrementAndGet();
+            return CompletableFuture.completedFuture(false);
+        }
+        return stored.handle((v, e) -> {
+            if (e != null) {
+                // the record may have reached the disk in part of a failed batch, it must not be replayed either
+                if (spool != null) {
+                    spool.complete(message);
+                }
+                rejected.incrementAndGet();
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Queues a delivery failure generated by a worker in the bounce lane, without waiting. Delivery failures are not
+     * spooled.
+     *
+     * @param failure the delivery failure addressed to the sender of a message
+     */
+    public void submitBounce(Message failure) {
+        if (isShutdown || !enqueueNow(new Delivery(failure, DeliveryQueue.BOUNCE))) {
+            rejected.incrementAndGet();
+            System.err.println("Dropping delivery failure to " + failure.getRecipients() + ", the bounce lane is full");
+        }
+    }
+
+    /**
+     * Queues a delivery, waiting up to the given time for free space. A queued delivery counts as in flight until a
+     * worker has finished with it.
+     *
+     * @return true if the delivery was queued, false if its lane stayed full
+     */
+    private boolean enqueue(Delivery delivery, long timeoutNanos) throws InterruptedException {
+        inFlight.incrementAndGet();
+        boolean queued = false;
+        try {
+            queued = messages.offer(delivery, timeoutNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            if (!queued) {
+                inFlight.decrementAndGet();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Queues a delivery without waiting, counted as in flight like {@link #enqueue(Delivery, long)}.
+     *
+     * @return true if the delivery was queued, false if its lane is full
+     */
+    private boolean enqueueNow(Delivery delivery) {
+        inFlight.incrementAndGet();
+        if (messages.offer(delivery)) {
+            return true;
+        }
+        inFlight.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the lane a message from a client is queued in, chosen by the sender rules of the config
+     */
+    int laneOf(Message message) {
+        if (bulkSenders != null && message.getSender() != null && bulkSenders.matcher(message.getSender()).matches()) {
+            return DeliveryQueue.BULK;
+        }
+        return DeliveryQueue.INTERACTIVE;
+    }
+
+    private void work() {
+        while (!isShutdown) {
+            List<Delivery> batch;
+            try {
+                batch = takeBatch();
+            } catch (InterruptedException e) {
+                break;
+            }
+            busyWorkers.incrementAndGet();
+            int taken = batch.size();
+            try {
+                // messages that could not be spooled have been rejected, they are dropped here
+                batch.removeIf(delivery -> !delivery.awaitStored());
+                MailboxConnection connection = new MailboxConnection(config, batch, this);
+                connection.run();
+                for (Delivery delivery : batch) {
+                    // deferred deliveries stay in the spool until their last attempt, with the domains already
+                    // reached recorded, so they are not forwarded to those again after a restart
+                    if (connection.getDeferred().contains(delivery)) {
+                        if (spool != null) {
+                            spool.defer(delivery.getMessage(), delivery.getDomains(), delivery.getAttempts());
+                        }
+                        continue;
+                    }
+                    delivered.incrementAndGet();
+                    if (spool != null) {
+                        spool.complete(delivery.getMessage());
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Error while delivering message: " + e);
+            } finally {
+                busyWorkers.decrementAndGet();
+                // after the bounces and retries of the batch have been queued and counted themselves
+                inFlight.addAndGet(-taken);
+            }
+        }
+    }
+
+    private List<Delivery> takeBatch() throws InterruptedException {
+        List<Delivery> batch = new ArrayList<>();
+        // consumer, waits if necessary
+        batch.add(messages.take());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchLinger);
+        while (batch.size() < batchSize) {
+            if (messages.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            Delivery next = messages.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        return batch;
+    }
+
+    public int getQueueSize() {
+        return messages.size();
+    }
+
+    public int getQueueCapacity() {
+        return messages.size() + messages.remainingCapacity();
+    }
+
+    public DeliveryQueue getQueue() {
+        return messages;
+    }
+
+    public int getBusyWorkers() {
+        return busyWorkers.get();
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public MailboxConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public DomainResolver getDomainResolver() {
+        return domainResolver;
+    }
+
+    public RetryScheduler getRetryScheduler() {
+        return retryScheduler;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public MonitoringReporter getMonitoringReporter() {
+        return monitoringReporter;
+    }
+
+    Executor getFanOut() {
+        return fanOut;
+    }
+
+    public MessageSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Starts draining: client sessions no longer start new transactions, messages already accepted are still
+     * delivered.
+     */
+    public void beginDrain() {
+        isDraining = true;
+    }
+
+    public boolean isDraining() {
+        return isDraining;
+    }
+
+    /**
+     * Waits until every queued delivery has been finished by a worker. Deliveries waiting for a retry are not waited
+     * for, they stay in the spool.
+     *
+     * @param deadline the {@link System#nanoTime()} after which to stop waiting
+     * @return true if all queued messages have been forwarded in time
+     */
+    public boolean awaitDrained(long deadline) throws InterruptedException {
+        while (inFlight.get() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        isShutdown = true;
+        workers.shutdownNow();
+        fanOut.shutdownNow();
+        retryScheduler.shutdown();
+        connectionPool.shutdown();
+        monitoringReporter.shutdown();
+        if (spool != null) {
+            // messages still queued stay in the spool and are delivered after the next start
+            spool.close();
+        }
+    }
+}
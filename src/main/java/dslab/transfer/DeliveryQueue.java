@@ -0,0 +1,244 @@
+package dslab.transfer;
+
+import dslab.util.Config;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue between the client handlers and the delivery workers, split into priority lanes: mail from interactive
+ * users, bulk mail and delivery failures. Every lane has its own capacity, so a bulk sender filling its lane does not
+ * keep anybody else from queueing. Lanes are served by smooth weighted round robin: over time every lane gets a share
+ * of the dequeued deliveries proportional to its weight, and no non-empty lane is ever starved.
+ */
+public class DeliveryQueue {
+
+    public static final int INTERACTIVE = 0;
+    public static final int BULK = 1;
+    public static final int BOUNCE = 2;
+
+    private static final String[] LANE_NAMES = {"interactive", "bulk", "bounce"};
+
+    private ArrayDeque<Delivery>[] lanes;
+    private int[] capacities;
+    private int[] weights;
+    // current weights of the round robin
+    private int[] current;
+    private int size;
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition notEmpty = lock.newCondition();
+    private Condition[] notFull;
+
+    public DeliveryQueue(Config config) {
+        this(new int[]{
+                config.getInt("lane.interactive.capacity", 500),
+                config.getInt("lane.bulk.capacity", 500),
+                config.getInt("lane.bounce.capacity", 200)
+        }, new int[]{
+                config.getInt("lane.interactive.weight", 4),
+                config.getInt("lane.bulk.weight", 1),
+                config.getInt("lane.bounce.weight", 2)
+        });
+    }
+
+    /**
+     * @param capacities the capacity of each lane, indexed by lane
+     * @param weights the weight of each lane, indexed by lane
+     */
+    public DeliveryQueue(int[] capacities, int[] weights) {
+        // generic arrays cannot be created directly; the array never leaves this queue and only holds delivery deques
+        @SuppressWarnings("unchecked")
+        ArrayDeque<Delivery>[] lanes = (ArrayDeque<Delivery>[]) new ArrayDeque<?>[LANE_NAMES.length];
+        this.lanes = lanes;
+        this.capacities = new int[LANE_NAMES.length];
+        this.weights = new int[LANE_NAMES.length];
+        this.current = new int[LANE_NAMES.length];
+        this.notFull = new Condition[LANE_NAMES.length];
+        for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+            this.lanes[lane] = new ArrayDeque<>();
+            this.capacities[lane] = Math.max(1, capacities[lane]);
+            this.weights[lane] = Math.max(1, weights[lane]);
+            this.notFull[lane] = lock.newCondition();
+        }
+    }
+
+    /**
+     * Queues a delivery in its lane, waiting up to the given time for free space.
+     *
+     * @return true if the delivery was queued, false if its lane stayed full
+     */
+    public boolean offer(Delivery delivery, long timeout, TimeUnit unit) throws InterruptedException {
+        int lane = delivery.getLane();
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (lanes[lane].size() >= capacities[lane]) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull[lane].awaitNanos(nanos);
+            }
+            enqueue(delivery, lane);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a delivery in its lane without waiting.
+     *
+     * @return true if the delivery was queued, false if its lane is full
+     */
+    public boolean offer(Delivery delivery) {
+        int lane = delivery.getLane();
+        lock.lock();
+        try {
+            if (lanes[lane].size() >= capacities[lane]) {
+                return false;
+            }
+            enqueue(delivery, lane);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a delivery in its lane, waiting as long as necessary for free space.
+     */
+    public void put(Delivery delivery) throws InterruptedException {
+        offer(delivery, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Removes the next delivery, waiting until one is available.
+     */
+    public Delivery take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next delivery, waiting up to the given time for one to become available.
+     *
+     * @return the delivery, or null if none became available
+     */
+    public Delivery poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to the given number of available deliveries, in weighted order, without waiting.
+     *
+     * @return the number of deliveries added to the list
+     */
+    public int drainTo(List<Delivery> target, int maxDeliveries) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (size > 0 && drained < maxDeliveries) {
+                target.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Delivery delivery, int lane) {
+        lanes[lane].addLast(delivery);
+        size++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Picks the lane by smooth weighted round robin among the non-empty lanes. Must be called with the lock held and
+     * at least one delivery queued.
+     */
+    private Delivery dequeue() {
+        int total = 0;
+        int selected = -1;
+        for (int lane = 0; lane < lanes.length; lane++) {
+            if (lanes[lane].isEmpty()) {
+                continue;
+            }
+            current[lane] += weights[lane];
+            total += weights[lane];
+            if (selected < 0 || current[lane] > current[selected]) {
+                selected = lane;
+            }
+        }
+        current[selected] -= total;
+        size--;
+        notFull[selected].signal();
+        return lanes[selected].pollFirst();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size(int lane) {
+        lock.lock();
+        try {
+            return lanes[lane].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity(int lane) {
+        return capacities[lane];
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            int remaining = 0;
+            for (int lane = 0; lane < lanes.length; lane++) {
+                remaining += capacities[lane] - lanes[lane].size();
+            }
+            return remaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static int laneCount() {
+        return LANE_NAMES.length;
+    }
+
+    public static String nameOf(int lane) {
+        return LANE_NAMES[lane];
+    }
+}
@@ -0,0 +1,179 @@
+package dslab.transfer;
+
+import dslab.nameserver.INameserverRemote;
+import dslab.util.Config;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves mail domains to the DMTP address of the responsible mailbox server by querying the nameserver hierarchy
+ * iteratively. Answers are cached for a limited time; unknown domains are cached as well (negative caching), lookups
+ * that failed because a nameserver could not be reached are not. The cache is bounded and evicts the least recently
+ * used domain first.
+ *
+ * The remote objects of the zone nameservers met on the way down (e.g. <code>planet</code>, then
+ * <code>earth.planet</code>) are kept as well, so that resolving a new domain starts at the deepest known zone instead
+ * of at the root nameserver.
+ */
+public class DomainResolver {
+
+    private INameserverRemote rootNameserverRemote;
+    private long ttl;
+    private long negativeTtl;
+    private Map<String, CacheEntry> cache;
+    // remote objects of zone nameservers, keyed by zone, e.g. "planet" or "earth.planet"
+    private Map<String, INameserverRemote> zones = new ConcurrentHashMap<>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong zoneHits = new AtomicLong();
+
+    public DomainResolver(Config config, INameserverRemote rootNameserverRemote) {
+        this(rootNameserverRemote,
+                config.getInt("resolver.cache.ttl.ms", 60000),
+                config.getInt("resolver.cache.negative.ttl.ms", 10000),
+                config.getInt("resolver.cache.size", 10000));
+    }
+
+    public DomainResolver(INameserverRemote rootNameserverRemote, long ttl, long negativeTtl, int maxEntries) {
+        this.rootNameserverRemote = rootNameserverRemote;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the address of the mailbox server for the given domain.
+     *
+     * @param domain the mail domain, e.g. <code>earth.planet</code>
+     * @return the socket address of the mailbox server, e.g. <code>127.0.0.1:12552</code>, or null if the domain is
+     * unknown or the nameservers could not be reached
+     */
+    public String resolve(String domain) {
+        try {
+            return lookup(domain);
+        } catch (RemoteException e) {
+            System.err.println("Error: RemoteException while resolving domain " + domain + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the address of the mailbox server for the given domain, distinguishing unknown domains from
+     * unreachable nameservers.
+     *
+     * @param domain the mail domain, e.g. <code>earth.planet</code>
+     * @return the socket address of the mailbox server, or null if the domain is unknown
+     * @throws RemoteException if the nameservers could not be reached
+     */
+    public String lookup(String domain) throws RemoteException {
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            CacheEntry entry = cache.get(domain);
+            if (entry != null && entry.expires > now) {
+                hits.incrementAndGet();
+                return entry.address;
+            }
+        }
+        misses.incrementAndGet();
+
+        String address;
+        try {
+            address = lookupDomainOfMailbox(domain, true);
+        } catch (RemoteException e) {
+            // a cached zone nameserver may have gone away, forget the zones and start over at the root
+            zones.clear();
+            address = lookupDomainOfMailbox(domain, false);
+        }
+        synchronized (cache) {
+            cache.put(domain, new CacheEntry(address, now + (address != null ? ttl : negativeTtl)));
+        }
+        return address;
+    }
+
+    //iterative MailboxServer-Domain-Lookup
+    private String lookupDomainOfMailbox(String recipientDomain, boolean useCachedZones) throws RemoteException {
+        if (rootNameserverRemote == null) {
+            throw new RemoteException("Root nameserver is not available");
+        }
+        INameserverRemote iteratedRemote = rootNameserverRemote;
+        String[] splitDomain = recipientDomain.split("\\.");
+
+        // start below the deepest zone whose nameserver is already known
+        int start = splitDomain.length - 1;
+        if (useCachedZones) {
+            for (int i = 1; i < splitDomain.length; i++) {
+                INameserverRemote cached = zones.get(zoneOf(splitDomain, i));
+                if (cached != null) {
+                    iteratedRemote = cached;
+                    start = i - 1;
+                    zoneHits.incrementAndGet();
+                    break;
+                }
+            }
+        }
+
+        for (int i = start; i > 0; i--) { //Mailboxserver earth.planet kann existieren, ohne dass Nameserver earth.planet existieren muss (deshalb geht der Index bis exkl. 0)
+            iteratedRemote = iteratedRemote.getNameserver(splitDomain[i]);
+
+            if (iteratedRemote == null) {
+                System.err.println("Error while getting Nameserver: Nameserver for zone " + splitDomain[i] + " does not exist.");
+                return null;
+            }
+            zones.put(zoneOf(splitDomain, i), iteratedRemote);
+        }
+
+        //falls der Nameserver gefunden wurde, der die Recipient-Mailbox managen sollte
+        return iteratedRemote.lookup(splitDomain[0]);
+    }
+
+    /**
+     * @return the zone formed by the labels from the given index to the end, e.g. <code>earth.planet</code> for index 1
+     * of <code>vienna.earth.planet</code>
+     */
+    private static String zoneOf(String[] labels, int from) {
+        return String.join(".", Arrays.copyOfRange(labels, from, labels.length));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getZoneHits() {
+        return zoneHits.get();
+    }
+
+    public int getZoneCount() {
+        return zones.size();
+    }
+
+    public int getCacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static class CacheEntry {
+        private String address;
+        private long expires;
+
+        CacheEntry(String address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+}
@@ -1,237 +1,441 @@
 package dslab.transfer;
 
 import dslab.Message;
-import dslab.nameserver.INameserverRemote;
 import dslab.util.Config;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.MissingResourceException;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MailboxConnection implements Runnable {
 
-    private Socket transferServer;
-    private PrintWriter writer;
-    private BufferedReader reader;
     private Config config;
-    private BlockingQueue<Message> messages;
-
-    private boolean unknownRecipientFailure;
-    private String unknownRecipient;
-
-    private boolean domainLookupFailed;
-
-    //remote object of the root nameserver
-    private INameserverRemote rootNameserverRemote;
-
-    public MailboxConnection(Config config, BlockingQueue<Message> messages, INameserverRemote rootNameserverRemote) {
+    private List<Delivery> deliveries;
+    private MailboxConnectionPool connectionPool;
+    private boolean pipelining;
+    private DomainResolver domainResolver;
+    private RetryScheduler retryScheduler;
+    private CircuitBreaker circuitBreaker;
+    private MonitoringReporter monitoringReporter;
+    private DeliveryEngine deliveryEngine;
+    // the delivery failures among the batch, they are not bounced again if they cannot be delivered
+    private Set<Message> bounces = new HashSet<>();
+    private Executor fanOut;
+    // looked up once for every delivery of the batch, by identity
+    private Set<Delivery> deferred = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * @param deliveries the batch of messages to forward; messages for the same mailbox server share one connection
+     * @param deliveryEngine provides the connection pool, the domain resolver, the retry scheduler, the circuit breakers,
+     * the monitoring reporter and the threads to forward to several mailbox servers in parallel
+     */
+    public MailboxConnection(Config config, List<Delivery> deliveries, DeliveryEngine deliveryEngine) {
         this.config = config;
-        this.messages = messages;
-        this.rootNameserverRemote = rootNameserverRemote;
+        this.deliveries = deliveries;
+        this.domainResolver = deliveryEngine.getDomainResolver();
+        this.connectionPool = deliveryEngine.getConnectionPool();
+        this.retryScheduler = deliveryEngine.getRetryScheduler();
+        this.circuitBreaker = deliveryEngine.getCircuitBreaker();
+        this.monitoringReporter = deliveryEngine.getMonitoringReporter();
+        this.deliveryEngine = deliveryEngine;
+        for (Delivery delivery : deliveries) {
+            if (delivery.isBounce()) {
+                bounces.add(delivery.getMessage());
+            }
+        }
+        this.fanOut = deliveryEngine.getFanOut();
+        this.pipelining = config.getBoolean("delivery.pipelining", true);
     }
 
+    /**
+     * Forwards the batch: resolves the distinct recipient domains, forwards the messages to all involved mailbox
+     * servers in parallel and, once every transfer has finished, defers or bounces what could not be delivered and
+     * reports the messages to the monitoring server. The time needed is bounded by the slowest mailbox server rather
+     * than by the sum of all of them.
+     */
     @Override
     public void run() {
-        String[] splitRecipientEmailAddress;
-        String[] splitRecipientDomain; //Domain of the Mailbox-Server that a mail is being forwarded to
-
-        List<String> uniqueDomains = new LinkedList<>();
-        Message failure = null;
-        Message message = null;
-        try {
-            //consumer, waits if necessary
-            message = messages.take();
-            for (String recipient : message.getRecipients()) {
-                splitRecipientEmailAddress = recipient.split("@"); //Domain of the "to"-field that was set in the Mail that is being forwarded
-
-                    String resultOfDomainLookup = lookupDomainOfMailbox(splitRecipientEmailAddress[1]);
-
-                    unknownRecipientFailure = false;
-
-                    if(resultOfDomainLookup != null){ //domain-lookup failed, either because the domain is not known or the nameserver is not running
-                        splitRecipientDomain = resultOfDomainLookup.split(":");
-
-                        // prevents sending multiple mails, to recipients of the same domain
-                        // ensures that only one email is sent to each domain
-                        if (!uniqueDomains.contains(splitRecipientEmailAddress[1]) && splitRecipientDomain.length > 1) {
-                            setUpConnectionToMailbox(splitRecipientDomain);
-                            System.out.println(splitRecipientEmailAddress[1]);
-                            uniqueDomains.add(splitRecipientEmailAddress[1]);
-                            send(message);
-
-                            if(unknownRecipientFailure){
-                                failure = new Message();
-                                sendDeliveryFailure(failure, message, recipient, unknownRecipientFailure);
-                            }
-                        }
-                    }
-                    else{
-                        // at least one unknown recipient domain
-                        // send delivery failure to sender
-                        try {
-                            failure = new Message();
-                            sendDeliveryFailure(failure, message, recipient, unknownRecipientFailure);
-                        } catch (MissingResourceException e1) {
-                            // unknown sender domain
-                            return;
-                        } finally {
-                            close();
-                        }
-                    }
+        // messages of the batch, grouped by the mailbox server (host:port) they have to be forwarded to
+        Map<String, Transfer> transfers = new LinkedHashMap<>();
+        // for each delivery the domains that could not be reached, and the destinations that failed for them
+        Map<Delivery, Set<String>> failedDomains = new LinkedHashMap<>();
+        Map<Delivery, Set<String>> failedDestinations = new HashMap<>();
+        Map<Delivery, Long> notBefore = new HashMap<>();
+        List<Message> failures = new ArrayList<>();
+
+        // every distinct domain of the batch is looked up once
+        Map<String, Lookup> lookups = new LinkedHashMap<>();
+        for (Delivery delivery : deliveries) {
+            for (String domain : delivery.getDomains()) {
+                lookups.computeIfAbsent(domain, Lookup::new);
             }
-        } catch (IOException | InterruptedException e) {
-            System.err.println("Error while forwarding mail: " + e);
         }
-
-        if (failure != null) {
-            sendUdpPackage(failure.getSender());
+        runAll(new ArrayList<>(lookups.values()));
+
+        for (Delivery delivery : deliveries) {
+            Message message = delivery.getMessage();
+            // only the domains still pending, one transaction per mailbox server even if it serves several of them
+            for (String domain : delivery.getDomains()) {
+                Lookup lookup = lookups.get(domain);
+                if (lookup.unreachable) {
+                    // the nameservers could not be reached, try again later
+                    failedDomains.computeIfAbsent(delivery, k -> new LinkedHashSet<>()).add(domain);
+                    failedDestinations.computeIfAbsent(delivery, k -> new HashSet<>()).add(domain);
+                } else if (lookup.address == null) { //domain-lookup failed, because the domain is not known
+                    // send delivery failure to sender
+                    addDeliveryFailure(failures, message, "could not find domain for recipient(s): "
+                            + String.join(", ", delivery.getRecipients(domain)));
+                } else {
+                    transfers.computeIfAbsent(lookup.address, Transfer::new).add(delivery, domain);
+                }
+            }
         }
-        sendUdpPackage(message.getSender());
-    }
-
-    public void setUpConnectionToMailbox(String[] senderDomain) throws IOException {
-        String host = senderDomain[0];
-        int port = Integer.parseInt(senderDomain[1]);
-        transferServer = new Socket(host, port);
-        reader = new BufferedReader(new InputStreamReader(transferServer.getInputStream()));
-        writer = new PrintWriter(transferServer.getOutputStream(), true);
-    }
 
-    private void sendDeliveryFailure(Message failure, Message message, String recipient, boolean unknownRecipientFailure) throws IOException {
-        String[] sender = message.getSender().split("@");
-        String[] senderMailboxDomain;
+        runAll(new ArrayList<>(transfers.values()));
 
-        String resultOfDomainLookup = lookupDomainOfMailbox(sender[1]);
+        for (Transfer transfer : transfers.values()) {
+            String address = transfer.address;
+            failures.addAll(transfer.failures);
+            if (transfer.attempted) {
+                // the circuit breaker has already been told by the transfer itself
+                if (transfer.undelivered.isEmpty()) {
+                    retryScheduler.succeeded(address);
+                    continue;
+                }
+                retryScheduler.failed(address);
+            }
+            long retryAt = circuitBreaker.getRetryAt(address);
+            Set<Message> notForwarded = new HashSet<>(transfer.undelivered);
+            for (Map.Entry<Delivery, Set<String>> leg : transfer.domains.entrySet()) {
+                Delivery delivery = leg.getKey();
+                if (!notForwarded.contains(delivery.getMessage())) {
+                    continue;
+                }
+                failedDomains.computeIfAbsent(delivery, k -> new LinkedHashSet<>()).addAll(leg.getValue());
+                failedDestinations.computeIfAbsent(delivery, k -> new HashSet<>()).add(address);
+                notBefore.merge(delivery, retryAt, Math::max);
+            }
+        }
 
-        if(resultOfDomainLookup != null) { //Wenn auch die Sender-Mailbox nicht existiert: domain-lookup failed, either because the domain is not known or the nameserver is not running
-            senderMailboxDomain = resultOfDomainLookup.split(":");
-            setUpConnectionToMailbox(senderMailboxDomain);
-            List<String> recipientFailure = new ArrayList<>();
-            recipientFailure.add(message.getSender());
-            failure.setRecipients(recipientFailure);
-            failure.setSubject("error delivery failure");
-            if(unknownRecipientFailure){
-                failure.setData("Declined from mailbox - Unknown recipient: " + unknownRecipient);
-            }else {
-                failure.setData("could not find domain for recipient(s): " + recipient);
+        for (Map.Entry<Delivery, Set<String>> failed : failedDomains.entrySet()) {
+            Delivery delivery = failed.getKey();
+            if (retryScheduler.mayRetry(delivery)) {
+                delivery.failed(failed.getValue());
+                retryScheduler.defer(delivery, failedDestinations.get(delivery), notBefore.getOrDefault(delivery, 0L));
+                deferred.add(delivery);
+            } else {
+                // final attempt, give up on the domains that could not be reached
+                addDeliveryFailure(failures, delivery.getMessage(), "could not deliver to domain(s) "
+                        + String.join(", ", failed.getValue()) + " after " + retryScheduler.getMaxAttempts() + " attempts");
             }
+        }
 
-            failure.setSender("mailer@" + InetAddress.getLocalHost().getHostAddress());
-            send(failure);
+        for (Message failure : failures) {
+            // queued in the bounce lane, reported to the monitoring server once it has been forwarded
+            deliveryEngine.submitBounce(failure);
+        }
+        for (Delivery delivery : deliveries) {
+            if (!deferred.contains(delivery)) {
+                monitoringReporter.record(delivery.getMessage().getSender());
+            }
         }
-        //else - mail verwerfen
     }
 
-    private void send(Message message) {
-        String[] request;
-        String response;
+    /**
+     * Runs the tasks concurrently and waits until all of them have finished. The first task runs on the calling
+     * thread, so a single task is not handed over to another thread at all.
+     */
+    private void runAll(List<? extends Runnable> tasks) {
+        List<CompletableFuture<Void>> forked = new ArrayList<>();
+        for (int i = 1; i < tasks.size(); i++) {
+            try {
+                forked.add(CompletableFuture.runAsync(tasks.get(i), fanOut));
+            } catch (RejectedExecutionException e) {
+                // shutting down, do the work here
+                tasks.get(i).run();
+            }
+        }
         try {
-            // send to mailbox
-            request = parseMessage(message);
-            reader.readLine();
-            for (String input: request) {
-                writer.println(input);
-                response = reader.readLine();
-
-                if (response != null && response.contains("error unknown recipient")) {
-                    unknownRecipientFailure = true;
-                    unknownRecipient = response.substring(24);
-                    //break;
+            if (!tasks.isEmpty()) {
+                tasks.get(0).run();
+            }
+        } finally {
+            // the results of the batch are only evaluated once every task has finished, even if one of them failed
+            for (CompletableFuture<Void> future : forked) {
+                try {
+                    future.join();
+                } catch (CompletionException e) {
+                    System.err.println("Error while delivering message: " + e.getCause());
                 }
-                //System.out.println("MailConnection: Request: " + input + ", Response "+ response);
             }
-        } catch (IOException e) {
-            System.err.println("Error IOException while reading/writing: " + e);
         }
     }
 
-    private void sendUdpPackage(String sender) {
-        // send udp package <host>:<port> sender
-        DatagramSocket monitor;
+    /**
+     * @return the deliveries of the batch that failed for some domains and have been scheduled for another attempt
+     */
+    public Set<Delivery> getDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Sends the messages as consecutive transactions over one pooled session to the mailbox server with the given
+     * address. A reused session may have been closed by the mailbox server while it was idle, in that case the
+     * transactions are continued once on a freshly opened session.
+     *
+     * @param failures collects a delivery failure for every message the mailbox server declined a recipient of
+     * @return the messages that could not be forwarded because the mailbox server could not be reached
+     */
+    private List<Message> deliver(String address, List<Message> messages, List<Message> failures) {
+        MailboxSession session;
         try {
-            monitor = new DatagramSocket();
-            String udpPacket = InetAddress.getLocalHost().getHostAddress() + ":" + config.getString("tcp.port") + " " + sender;
-            byte[] buffer = udpPacket.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(config.getString("monitoring.host")), config.getInt("monitoring.port"));
-            //System.out.println("Packet Mailconnection: " + new String(packet.getData()));
-            monitor.send(packet);
+            session = connectionPool.borrow(address);
         } catch (IOException e) {
-            System.err.println("Error IOException while creating/sending datagram packet: Request: " + e);
-
+            System.err.println("Error while connecting to mailbox server " + address + ": " + e);
+            return messages;
+        }
+        boolean retried = false;
+        int sentOnSession = 0;
+        int sent = 0;
+        try {
+            for (; sent < messages.size(); sent++) {
+                Message message = messages.get(sent);
+                String unknownRecipient;
+                try {
+                    unknownRecipient = send(session, message);
+                } catch (IOException e) {
+                    session.invalidate();
+                    if (retried || !session.isReused() || sentOnSession > 0) {
+                        throw e;
+                    }
+                    connectionPool.release(session);
+                    session = connectionPool.connect(address);
+                    retried = true;
+                    unknownRecipient = send(session, message);
+                }
+                sentOnSession++;
+                if (unknownRecipient != null) {
+                    addDeliveryFailure(failures, message, "Declined from mailbox - Unknown recipient: " + unknownRecipient);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error while forwarding mail to " + address + ": " + e);
+            session.invalidate();
+            // the transaction in progress may or may not have been completed, it is sent again with the rest
+            return messages.subList(sent, messages.size());
+        } finally {
+            connectionPool.release(session);
         }
+        return Collections.emptyList();
     }
 
-    //iterative MailboxServer-Domain-Lookup
-    private String lookupDomainOfMailbox(String recipientDomain){
-        INameserverRemote iteratedRemote = rootNameserverRemote;
-        String[] splitDomain = recipientDomain.split("\\.");
-
-        boolean lookupFailed = false;
-
-        if(splitDomain != null){
-            System.out.println("THE TOP LEVEL DOMAIN IS: " + splitDomain[0]);
-        } else System.out.println("THE DOMAIN IS NON EXISTENT");
+    /**
+     * Adds a delivery failure for the sender of the given message, unless the message is a delivery failure itself.
+     */
+    private void addDeliveryFailure(List<Message> failures, Message message, String data) {
+        if (bounces.contains(message)) {
+            //Wenn auch die Sender-Mailbox nicht existiert - mail verwerfen
+            System.err.println("Dropping undeliverable delivery failure to " + message.getRecipients() + ": " + data);
+            return;
+        }
+        failures.add(createDeliveryFailure(message, data));
+    }
 
-        for (int i = splitDomain.length - 1; i > 0; i--) { //Mailboxserver earth.planet kann existieren, ohne dass Nameserver earth.planet existieren muss (deshalb geht der Index bis exkl. 0)
-            try {
-                iteratedRemote = iteratedRemote.getNameserver(splitDomain[i]);
+    private Message createDeliveryFailure(Message message, String data) {
+        Message failure = new Message();
+        List<String> recipientFailure = new ArrayList<>();
+        recipientFailure.add(message.getSender());
+        failure.setRecipients(recipientFailure);
+        failure.setSubject("error delivery failure");
+        failure.setData(data);
+        try {
+            failure.setSender("mailer@" + InetAddress.getLocalHost().getHostAddress());
+        } catch (UnknownHostException e) {
+            failure.setSender("mailer@localhost");
+        }
+        return failure;
+    }
 
-                if(iteratedRemote == null){
-                    System.err.println("Error while getting Nameserver: Nameserver for zone " + splitDomain[i] + " does not exist.");
-                    lookupFailed = true;
-                    break;
+    /**
+     * Forwards a single message as one DMTP transaction.
+     *
+     * @return the recipients declined by the mailbox server, or null if all recipients were accepted
+     */
+    private String send(MailboxSession session, Message message) throws IOException {
+        String[] request;
+        String unknownRecipient = null;
+        String declined;
+        // send to mailbox
+        request = parseMessage(message);
+        if (pipelining) {
+            // write the whole transaction at once, then collect the responses in request order
+            for (String input : request) {
+                writeRequest(session, message, input);
+            }
+            session.flush();
+            for (int i = 0; i < request.length; i++) {
+                declined = handleResponse(session, readResponse(session));
+                if (declined != null) {
+                    unknownRecipient = declined;
+                }
+            }
+        } else {
+            for (String input : request) {
+                writeRequest(session, message, input);
+                session.flush();
+                declined = handleResponse(session, readResponse(session));
+                if (declined != null) {
+                    unknownRecipient = declined;
                 }
-            } catch (RemoteException e) {
-                System.err.println("Error: RemoteException while getting Nameserver: " + splitDomain[i] + e);
-                lookupFailed = true;
-                break;
             }
         }
+        return unknownRecipient;
+    }
 
-        if(!lookupFailed){ //falls der Nameserver gefunden wurde, der die Recipient-Mailbox managen sollte
-            try {
-                return iteratedRemote.lookup(splitDomain[0]);
-            } catch (RemoteException e) {
-                //TODO: loggen, dass zwar der Nameserver gefunden wurde, in dem die Mailbox gespeichert sein sollte, aber der Lookup fehlgeschlagen ist (Mailbox server nicht online)
-                e.printStackTrace();
+    /**
+     * Writes one request of the transaction; the data request (null in the parsed message) is written from the
+     * message body bytes as they were received, as a data block if the body has more than one line.
+     */
+    private void writeRequest(MailboxSession session, Message message, String input) throws IOException {
+        if (input == null) {
+            ByteBuffer body = message.getBody();
+            if (isMultiLine(body)) {
+                session.writeBlock("data", body);
+            } else {
+                session.writeLine("data ", body);
             }
+        } else {
+            session.writeLine(input);
+        }
+    }
+
+    private static boolean isMultiLine(ByteBuffer body) {
+        for (int i = body.position(); i < body.limit(); i++) {
+            if (body.get(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String readResponse(MailboxSession session) throws IOException {
+        String response = session.getReader().readLine();
+        if (response == null) {
+            throw new IOException("Connection closed by mailbox server " + session.getAddress());
         }
+        return response;
+    }
 
-        //wenn null, dann wird die failure-Mail abgeschickt
+    private String handleResponse(MailboxSession session, String response) {
+        if (response.contains("error unknown recipient")) {
+            return response.substring(24);
+        } else if (response.startsWith("error")) {
+            System.err.println("Mailbox server " + session.getAddress() + " responded: " + response);
+        }
         return null;
     }
 
     private String[] parseMessage(Message message) {
-        String recipients = "";
-        for (String recipient : message.getRecipients()) {
-            recipients = recipients + recipient + ", ";
-        }
-        recipients = recipients.substring(0, recipients.length() - 2);
+        String recipients = String.join(", ", message.getRecipients());
         return new String[]{
                 "begin",
                 "from " + message.getSender(),
                 "to " + recipients,
                 "subject " + message.getSubject(),
-                "data " + message.getData(),
+                // the data is written by writeRequest, straight from the body bytes
+                null,
                 "hash " + message.getHash(),
-                "send",
-                "quit"
+                "send"
         };
     }
 
-    private void close() {
-        if (transferServer != null  && !transferServer.isClosed()) {
+    /**
+     * Looks up the mailbox server of one recipient domain.
+     */
+    private class Lookup implements Runnable {
+        private String domain;
+        private String address;
+        private boolean unreachable;
+
+        Lookup(String domain) {
+            this.domain = domain;
+        }
+
+        @Override
+        public void run() {
             try {
-                writer.close();
-                reader.close();
-                transferServer.close();
-            } catch (IOException e) {
-                // Ignored because we cannot handle it
+                address = domainResolver.lookup(domain);
+            } catch (RemoteException e) {
+                System.err.println("Error: RemoteException while resolving domain " + domain + ": " + e);
+                retryScheduler.failed(domain);
+                unreachable = true;
+            } catch (RuntimeException e) {
+                // not a verdict on the domain, its deliveries are deferred instead of bounced
+                System.err.println("Error while resolving domain " + domain + ": " + e);
+                retryScheduler.failed(domain);
+                unreachable = true;
+            }
+        }
+    }
+
+    /**
+     * Forwards the messages of the batch that have recipients served by one mailbox server.
+     */
+    private class Transfer implements Runnable {
+        private String address;
+        private List<Message> messages = new ArrayList<>();
+        // the domains of each delivery that are served by this mailbox server
+        private Map<Delivery, Set<String>> domains = new LinkedHashMap<>();
+        private List<Message> failures = new ArrayList<>();
+        private List<Message> undelivered;
+        private boolean attempted;
+
+        Transfer(String address) {
+            this.address = address;
+        }
+
+        void add(Delivery delivery, String domain) {
+            if (!domains.containsKey(delivery)) {
+                messages.add(delivery.getMessage());
+            }
+            domains.computeIfAbsent(delivery, k -> new LinkedHashSet<>()).add(domain);
+        }
+
+        @Override
+        public void run() {
+            if (!circuitBreaker.tryAcquire(address)) {
+                // the mailbox server failed repeatedly, do not tie up a thread with another connect timeout
+                undelivered = messages;
+                return;
+            }
+            attempted = true;
+            // a granted half-open trial must be released whatever happens, or the circuit never closes again
+            undelivered = messages;
+            try {
+                undelivered = deliver(address, messages, failures);
+            } catch (RuntimeException e) {
+                System.err.println("Error while delivering to mailbox server " + address + ": " + e);
+            } finally {
+                if (undelivered.isEmpty()) {
+                    circuitBreaker.succeeded(address);
+                } else {
+                    circuitBreaker.failed(address);
+                }
             }
         }
     }
@@ -0,0 +1,133 @@
+package dslab.transfer;
+
+import dslab.util.Config;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps DMTP sessions to mailbox servers open between deliveries. Idle sessions are kept per destination
+ * (<code>host:port</code>), handed out most-recently-used first, and closed once they were idle for too long.
+ */
+public class MailboxConnectionPool {
+
+    private Map<String, Deque<MailboxSession>> idleSessions = new ConcurrentHashMap<>();
+    private ScheduledExecutorService evictor;
+    private int maxIdlePerDestination;
+    private long idleTimeout;
+    private int connectTimeout;
+    private int readTimeout;
+    private volatile boolean isShutdown = false;
+
+    private AtomicLong opened = new AtomicLong();
+    private AtomicLong reused = new AtomicLong();
+
+    public MailboxConnectionPool(Config config) {
+        this.maxIdlePerDestination = config.getInt("pool.max.idle.per.destination", 4);
+        this.idleTimeout = config.getInt("pool.idle.timeout.ms", 30000);
+        this.connectTimeout = config.getInt("pool.connect.timeout.ms", 3000);
+        this.readTimeout = config.getInt("mailbox.read.timeout.ms", 10000);
+        this.evictor = Executors.newSingleThreadScheduledExecutor();
+        long period = Math.max(idleTimeout / 2, 1000);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns an idle session to the given mailbox server, or opens a new one if none is available.
+     *
+     * @param address the DMTP socket address of the mailbox server
+     * @return a session that has already received the server greeting
+     * @throws IOException if a new connection could not be established
+     */
+    public MailboxSession borrow(String address) throws IOException {
+        Deque<MailboxSession> sessions = idleSessions.get(address);
+        if (sessions != null) {
+            MailboxSession session;
+            while ((session = sessions.pollFirst()) != null) {
+                if (session.isUsable(idleTimeout) && session.isAlive()) {
+                    session.markReused();
+                    reused.incrementAndGet();
+                    return session;
+                }
+                session.close();
+            }
+        }
+        return connect(address);
+    }
+
+    /**
+     * Opens a new session to the given mailbox server, bypassing the idle sessions.
+     */
+    public MailboxSession connect(String address) throws IOException {
+        MailboxSession session = new MailboxSession(address, connectTimeout, readTimeout);
+        opened.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Gives a session back to the pool. Broken sessions and sessions exceeding the per-destination limit are closed.
+     */
+    public void release(MailboxSession session) {
+        if (isShutdown || !session.isUsable(Long.MAX_VALUE)) {
+            session.close();
+            return;
+        }
+        session.touch();
+        Deque<MailboxSession> sessions = idleSessions.computeIfAbsent(session.getAddress(), k -> new ConcurrentLinkedDeque<>());
+        sessions.offerFirst(session);
+        while (sessions.size() > maxIdlePerDestination) {
+            MailboxSession oldest = sessions.pollLast();
+            if (oldest == null) {
+                break;
+            }
+            oldest.close();
+        }
+    }
+
+    private void evictIdle() {
+        for (Deque<MailboxSession> sessions : idleSessions.values()) {
+            Iterator<MailboxSession> iterator = sessions.iterator();
+            while (iterator.hasNext()) {
+                MailboxSession session = iterator.next();
+                if (!session.isUsable(idleTimeout) && sessions.removeFirstOccurrence(session)) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (Deque<MailboxSession> sessions : idleSessions.values()) {
+            count += sessions.size();
+        }
+        return count;
+    }
+
+    public long getOpened() {
+        return opened.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    public void shutdown() {
+        isShutdown = true;
+        evictor.shutdownNow();
+        for (Deque<MailboxSession> sessions : idleSessions.values()) {
+            MailboxSession session;
+            while ((session = sessions.pollFirst()) != null) {
+                session.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package dslab.transfer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An open DMTP session to a mailbox server. The session has already received the server greeting and can be used for
+ * any number of consecutive {@code begin ... send} transactions.
+ */
+public class MailboxSession {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private String address;
+    private Socket socket;
+    private BufferedReader reader;
+    private OutputStream out;
+    // copy buffer for content that is not on the heap
+    private byte[] chunk;
+    private int readTimeout;
+    private long lastUsed;
+    private boolean reused;
+    private boolean broken;
+
+    /**
+     * Connects to the mailbox server and reads its greeting.
+     *
+     * @param address the DMTP socket address of the mailbox server, e.g. <code>127.0.0.1:12552</code>
+     * @param connectTimeout the connect timeout in milliseconds
+     * @param readTimeout the time in milliseconds to wait for a response, after which the session is broken; a
+     *                    server that went away without closing the connection must not block a worker forever
+     * @throws IOException if the connection could not be established or the server did not greet with DMTP
+     */
+    public MailboxSession(String address, int connectTimeout, int readTimeout) throws IOException {
+        String[] hostAndPort = address.split(":");
+        if (hostAndPort.length != 2) {
+            throw new IOException("Invalid mailbox address: " + address);
+        }
+        this.address = address;
+        this.readTimeout = readTimeout;
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])), connectTimeout);
+            // a read running into the timeout throws a SocketTimeoutException, the session is invalidated like on
+            // any other I/O error
+            socket.setSoTimeout(readTimeout);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // not auto-flushing, so that pipelined requests leave in as few segments as possible
+            out = new BufferedOutputStream(socket.getOutputStream());
+            String greeting = reader.readLine();
+            if (greeting == null || !greeting.startsWith("ok DMTP")) {
+                throw new IOException("Unexpected greeting from mailbox " + address + ": " + greeting);
+            }
+        } catch (IOException | NumberFormatException e) {
+            close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Invalid mailbox address: " + address, e);
+        }
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public BufferedReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Buffers a request line, it is sent with the next {@link #flush()}.
+     */
+    public void writeLine(String request) throws IOException {
+        out.write(request.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    /**
+     * Buffers a request line whose content is already UTF-8 encoded, e.g. the data of a message as it was received.
+     * The content is written as it is, without being decoded or copied into an intermediate string.
+     *
+     * @param prefix the request keyword including the separating space
+     * @param content the content bytes between position and limit, the buffer itself is left unchanged
+     */
+    public void writeLine(String prefix, ByteBuffer content) throws IOException {
+        out.write(prefix.getBytes(StandardCharsets.UTF_8));
+        write(content, content.position(), content.limit());
+        out.write('\n');
+    }
+
+    /**
+     * Buffers a request followed by its content as a data block: the content line by line, every line starting with
+     * a dot with an additional dot, terminated by a line holding a single dot. The content is written as it is, in
+     * chunks if it is not on the heap, so a memory mapped body is never copied as a whole.
+     *
+     * @param request the request starting the block
+     * @param content the UTF-8 content between position and limit, lines separated by {@code \n}; left unchanged
+     */
+    public void writeBlock(String request, ByteBuffer content) throws IOException {
+        writeLine(request);
+        int start = content.position();
+        while (true) {
+            int end = start;
+            while (end < content.limit() && content.get(end) != '\n') {
+                end++;
+            }
+            if (end > start && content.get(start) == '.') {
+                out.write('.');
+            }
+            write(content, start, end);
+            out.write('\n');
+            if (end == content.limit()) {
+                break;
+            }
+            start = end + 1;
+        }
+        writeLine(".");
+    }
+
+    private void write(ByteBuffer content, int from, int to) throws IOException {
+        if (content.hasArray()) {
+            out.write(content.array(), content.arrayOffset() + from, to - from);
+            return;
+        }
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+        ByteBuffer source = content.duplicate();
+        source.limit(to).position(from);
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * @return true if this session was taken from the pool instead of being freshly connected
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    void markReused() {
+        reused = true;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the session as unusable, e.g. after an I/O error. Broken sessions are closed instead of returned to the
+     * pool.
+     */
+    public void invalidate() {
+        broken = true;
+    }
+
+    /**
+     * Checks whether the session can still carry a transaction.
+     *
+     * @param idleTimeout the maximum time in milliseconds the session may have been idle
+     * @return true if the socket is still open and was not idle for too long
+     */
+    boolean isUsable(long idleTimeout) {
+        return !broken && !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown()
+                && System.currentTimeMillis() - lastUsed < idleTimeout;
+    }
+
+    /**
+     * Checks, waiting at most a millisecond, that the mailbox server has neither closed the connection nor sent
+     * anything unasked, e.g. an error for a session it timed out. Either makes the session unusable.
+     *
+     * @return true if the connection is still open and nothing is waiting to be read
+     */
+    boolean isAlive() {
+        try {
+            if (reader.ready()) {
+                return false;
+            }
+            socket.setSoTimeout(1);
+            try {
+                // end of stream or an unexpected line
+                reader.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(readTimeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Says goodbye to the mailbox server (if still possible) and closes the socket.
+     */
+    public void close() {
+        if (!socket.isClosed()) {
+            try {
+                if (out != null && !broken) {
+                    writeLine("quit");
+                    flush();
+                }
+                socket.close();
+            } catch (IOException e) {
+                // Ignored because we cannot handle it
+            }
+        }
+    }
+}
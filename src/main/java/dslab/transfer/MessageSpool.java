@@ -0,0 +1,529 @@
+package dslab.transfer;
+
+import dslab.Message;
+import dslab.util.Config;
+import dslab.util.RecordBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only spool behind the transfer server's message queue. An accepted message is written to the current
+ * segment file before the client gets its {@code ok}, and a done marker is appended once the message has been
+ * forwarded; a message deferred after reaching some of its domains gets a record of the domains still pending. A
+ * single writer thread collects all pending records, writes them and forces them to disk together (group
+ * commit), so concurrent clients share one fsync. Segments are rolled at a configurable size and deleted, oldest
+ * first, as soon as every message in them is done. On startup the segments are replayed and all messages without
+ * done marker are handed back for delivery.
+ */
+public class MessageSpool {
+
+    private static final byte MESSAGE = 1;
+    private static final byte DONE = 2;
+    private static final byte DEFERRED = 3;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final PendingWrite STOP = new PendingWrite(null, 0, (byte) 0, null);
+
+    private Path directory;
+    private long segmentSize;
+    private FileChannel segment;
+    private int segmentNumber;
+    private long segmentBytes;
+    private AtomicLong nextId = new AtomicLong(1);
+
+    // ids of the messages that are not done yet, per segment; only modified by the writer thread
+    private Map<Integer, Set<Long>> liveIds = new ConcurrentSkipListMap<>();
+    private Map<Long, Integer> segmentOfId = new ConcurrentHashMap<>();
+    // the progress of the recovered messages that had been deferred, handed out once by takeDeferred
+    private Map<Long, DeferredState> recoveredDeferred = new ConcurrentHashMap<>();
+
+    private BlockingQueue<PendingWrite> writes = new LinkedBlockingQueue<>();
+    private ExecutorService writer;
+    private volatile boolean isClosed = false;
+
+    public MessageSpool(Config config) {
+        this(Paths.get(config.getString("spool.dir")), config.getInt("spool.segment.size", 4 * 1024 * 1024));
+    }
+
+    /**
+     * @param directory the directory holding the segment files, created if necessary
+     * @param segmentSize the size in bytes after which a new segment is started
+     */
+    public MessageSpool(Path directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Replays the existing segments, opens a new segment for writing and starts the writer thread.
+     *
+     * @return the spooled messages that have not been delivered yet, in the order they were accepted
+     * @throws IOException if the spool directory cannot be read or the new segment cannot be created
+     */
+    public List<Message> recover() throws IOException {
+        Files.createDirectories(directory);
+        Map<Long, Message> pending = new LinkedHashMap<>();
+        Map<Long, Integer> segmentOfPending = new TreeMap<>();
+        int lastSegment = 0;
+        for (int number : listSegments()) {
+            lastSegment = number;
+            liveIds.put(number, new HashSet<>());
+            replay(number, pending, segmentOfPending);
+        }
+        recoveredDeferred.keySet().retainAll(pending.keySet());
+        for (Map.Entry<Long, Integer> entry : segmentOfPending.entrySet()) {
+            liveIds.get(entry.getValue()).add(entry.getKey());
+            segmentOfId.put(entry.getKey(), entry.getValue());
+        }
+        openSegment(lastSegment + 1);
+        compact();
+
+        writer = Executors.newSingleThreadExecutor();
+        writer.execute(this::write);
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Assigns the message its spool id and queues it for writing.
+     *
+     * @param message the accepted message
+     * @return a future that completes once the message is on disk
+     */
+    public CompletableFuture<Void> append(Message message) {
+        CompletableFuture<Void> stored = new CompletableFuture<>();
+        if (isClosed) {
+            stored.completeExceptionally(new IOException("Spool is closed"));
+            return stored;
+        }
+        long id = nextId.getAndIncrement();
+        message.setId(id);
+        try {
+            writes.add(new PendingWrite(encode(MESSAGE, id, message), id, MESSAGE, stored));
+        } catch (IOException e) {
+            stored.completeExceptionally(e);
+        }
+        return stored;
+    }
+
+    /**
+     * Marks a message as done, so that it is neither replayed nor keeps its segment alive.
+     *
+     * @param message a message previously passed to {@link #append(Message)}
+     */
+    public void complete(Message message) {
+        if (message.getId() == 0 || isClosed) {
+            return;
+        }
+        try {
+            writes.add(new PendingWrite(encode(DONE, message.getId(), null), message.getId(), DONE, null));
+        } catch (IOException e) {
+            System.err.println("Error IOException while encoding spool record: " + e);
+        }
+    }
+
+    /**
+     * Records that a message has been forwarded to some of its domains and deferred for the others, so that after a
+     * restart it is only forwarded to the domains still pending.
+     *
+     * @param message a message previously passed to {@link #append(Message)}
+     * @param domains the recipient domains the message has not been forwarded to yet
+     * @param attempts the number of failed attempts so far
+     */
+    public void defer(Message message, Set<String> domains, int attempts) {
+        if (message.getId() == 0 || isClosed) {
+            return;
+        }
+        try {
+            writes.add(new PendingWrite(encodeDeferred(message.getId(), domains, attempts), message.getId(), DEFERRED,
+                    null));
+        } catch (IOException e) {
+            System.err.println("Error IOException while encoding spool record: " + e);
+        }
+    }
+
+    /**
+     * Returns the progress recorded by {@link #defer(Message, Set, int)} for a message returned by {@link #recover()}.
+     *
+     * @param message a recovered message
+     * @return the domains still pending and the attempts so far, or null if the message had not been deferred
+     */
+    public DeferredState takeDeferred(Message message) {
+        return recoveredDeferred.remove(message.getId());
+    }
+
+    private void write() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(writes.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            writes.drainTo(batch);
+            boolean stop = batch.remove(STOP);
+            IOException failure = null;
+            try {
+                for (PendingWrite pending : batch) {
+                    if (segmentBytes > 0 && segmentBytes + pending.size() > segmentSize) {
+                        segment.force(false);
+                        segment.close();
+                        openSegment(segmentNumber + 1);
+                    }
+                    long remaining = pending.size();
+                    while (remaining > 0) {
+                        long written = segment.write(pending.record);
+                        segmentBytes += written;
+                        remaining -= written;
+                    }
+                    pending.segment = segmentNumber;
+                }
+                // one fsync for all records of the batch
+                segment.force(false);
+                // the index only refers to records on disk
+                for (PendingWrite pending : batch) {
+                    if (pending.type == MESSAGE) {
+                        liveIds.get(pending.segment).add(pending.id);
+                        segmentOfId.put(pending.id, pending.segment);
+                    } else if (pending.type == DONE) {
+                        Integer number = segmentOfId.remove(pending.id);
+                        if (number != null) {
+                            liveIds.get(number).remove(pending.id);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error IOException while writing spool: " + e);
+                failure = e;
+                // a record may have been written partially, replay stops there, so later records go to a new segment
+                rollAfterFailure();
+            }
+            try {
+                compact();
+            } catch (IOException e) {
+                // the records are on disk, an old segment is only kept longer than necessary
+                System.err.println("Error IOException while compacting spool: " + e);
+            }
+            for (PendingWrite pending : batch) {
+                if (pending.stored != null) {
+                    if (failure == null) {
+                        pending.stored.complete(null);
+                    } else {
+                        pending.stored.completeExceptionally(failure);
+                    }
+                }
+            }
+            batch.clear();
+            if (stop) {
+                break;
+            }
+        }
+    }
+
+    private void rollAfterFailure() {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            // Ignored because we cannot handle it
+        }
+        try {
+            openSegment(segmentNumber + 1);
+        } catch (IOException e) {
+            // the next batch fails on the closed segment and tries again
+            System.err.println("Error IOException while starting spool segment: " + e);
+        }
+    }
+
+    /**
+     * Deletes segments from the oldest on, as long as all of their messages are done. Keeping the order guarantees
+     * that a done marker is never deleted while the message it refers to is still on disk.
+     */
+    private void compact() throws IOException {
+        for (Map.Entry<Integer, Set<Long>> entry : liveIds.entrySet()) {
+            if (entry.getKey() == segmentNumber || !entry.getValue().isEmpty()) {
+                break;
+            }
+            Files.deleteIfExists(segmentPath(entry.getKey()));
+            liveIds.remove(entry.getKey());
+        }
+    }
+
+    private void openSegment(int number) throws IOException {
+        segmentNumber = number;
+        segmentBytes = 0;
+        segment = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        liveIds.put(number, new HashSet<>());
+    }
+
+    private void replay(int number, Map<Long, Message> pending, Map<Long, Integer> segmentOfPending) throws IOException {
+        Path path = segmentPath(number);
+        long remaining = Files.size(path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (remaining >= 8) {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xffffffffL;
+                remaining -= 8;
+                if (length < 9 || length > remaining) {
+                    // the server stopped in the middle of writing the last record
+                    System.err.println("Ignoring incomplete tail of spool segment " + number);
+                    return;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                remaining -= length;
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (crc.getValue() != checksum) {
+                    System.err.println("Ignoring corrupt tail of spool segment " + number);
+                    return;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                long id = record.readLong();
+                nextId.accumulateAndGet(id + 1, Math::max);
+                if (type == MESSAGE) {
+                    pending.put(id, decode(id, record));
+                    segmentOfPending.put(id, number);
+                } else if (type == DONE) {
+                    pending.remove(id);
+                    segmentOfPending.remove(id);
+                    recoveredDeferred.remove(id);
+                } else if (type == DEFERRED) {
+                    // the last record of a message wins
+                    recoveredDeferred.put(id, decodeDeferred(record));
+                }
+            }
+        }
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> numbers.add(Integer.parseInt(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Encodes a record as the buffers to write one after the other: the header and fields before the body, the body
+     * itself, which is not copied, and the fields after it.
+     */
+    private static ByteBuffer[] encode(byte type, long id, Message message) throws IOException {
+        ByteBuffer content = message != null ? message.getBody() : null;
+        RecordBuffer head = new RecordBuffer(256);
+        DataOutputStream out = new DataOutputStream(head);
+        // length and checksum, filled in below
+        out.writeLong(0);
+        out.writeByte(type);
+        out.writeLong(id);
+        if (message == null) {
+            out.flush();
+            return new ByteBuffer[]{head.seal()};
+        }
+        writeString(out, message.getSender());
+        out.writeInt(message.getRecipients().size());
+        for (String recipient : message.getRecipients()) {
+            writeString(out, recipient);
+        }
+        writeString(out, message.getSubject());
+        out.writeInt(content == null ? -1 : content.remaining());
+        out.flush();
+
+        RecordBuffer tail = new RecordBuffer(64);
+        DataOutputStream tailOut = new DataOutputStream(tail);
+        writeString(tailOut, message.getHash());
+        tailOut.flush();
+        ByteBuffer tailBuffer = tail.toBuffer();
+        ByteBuffer headBuffer = head.seal(content, tailBuffer);
+        if (content == null) {
+            return new ByteBuffer[]{headBuffer, tailBuffer};
+        }
+        return new ByteBuffer[]{headBuffer, content, tailBuffer};
+    }
+
+    private static ByteBuffer[] encodeDeferred(long id, Set<String> domains, int attempts) throws IOException {
+        RecordBuffer head = new RecordBuffer(128);
+        DataOutputStream out = new DataOutputStream(head);
+        // length and checksum, filled in below
+        out.writeLong(0);
+        out.writeByte(DEFERRED);
+        out.writeLong(id);
+        out.writeInt(attempts);
+        out.writeInt(domains.size());
+        for (String domain : domains) {
+            writeString(out, domain);
+        }
+        out.flush();
+        return new ByteBuffer[]{head.seal()};
+    }
+
+    private static DeferredState decodeDeferred(DataInputStream in) throws IOException {
+        int attempts = in.readInt();
+        int count = in.readInt();
+        Set<String> domains = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            domains.add(readString(in));
+        }
+        return new DeferredState(domains, attempts);
+    }
+
+    private static Message decode(long id, DataInputStream in) throws IOException {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender(readString(in));
+        int recipients = in.readInt();
+        for (int i = 0; i < recipients; i++) {
+            message.getRecipients().add(readString(in));
+        }
+        message.setSubject(readString(in));
+        byte[] content = readBytes(in);
+        if (content != null) {
+            message.setBody(ByteBuffer.wrap(content));
+        }
+        message.setHash(readString(in));
+        return message;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public int getPendingCount() {
+        return segmentOfId.size();
+    }
+
+    public int getSegmentCount() {
+        return liveIds.size();
+    }
+
+    /**
+     * Writes the records queued so far, stops the writer thread and closes the current segment.
+     */
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        if (writer != null) {
+            writes.add(STOP);
+            writer.shutdown();
+            try {
+                writer.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (segment != null) {
+                segment.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error IOException while closing spool segment: " + e);
+        }
+    }
+
+    /**
+     * The progress of a deferred message: the domains it still has to be forwarded to and the failed attempts.
+     */
+    public static class DeferredState {
+        private Set<String> domains;
+        private int attempts;
+
+        DeferredState(Set<String> domains, int attempts) {
+            this.domains = domains;
+            this.attempts = attempts;
+        }
+
+        public Set<String> getDomains() {
+            return domains;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    private static class PendingWrite {
+        private ByteBuffer[] record;
+        private long id;
+        private byte type;
+        private CompletableFuture<Void> stored;
+        // the segment the record has been written to
+        private int segment;
+
+        PendingWrite(ByteBuffer[] record, long id, byte type, CompletableFuture<Void> stored) {
+            this.record = record;
+            this.id = id;
+            this.type = type;
+            this.stored = stored;
+        }
+
+        long size() {
+            long size = 0;
+            for (ByteBuffer part : record) {
+                size += part.remaining();
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package dslab.transfer;
+
+import dslab.util.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports forwarded messages to the monitoring server. Recording a message only counts it per sender; the counts are
+ * sent periodically, or as soon as enough distinct senders are waiting, over one long-lived UDP socket. Each datagram
+ * carries several records, one per line:
+ *
+ * <pre>&lt;host&gt;:&lt;port&gt; &lt;sender&gt; &lt;count&gt;</pre>
+ *
+ * A datagram is kept below the size of a typical MTU, more records are split over several datagrams.
+ */
+public class MonitoringReporter {
+
+    private static final int MAX_PACKET_SIZE = 1400;
+
+    private Map<String, Long> counts = new ConcurrentHashMap<>();
+    private DatagramSocket socket;
+    private InetSocketAddress monitoringAddress;
+    private String serverAddress;
+    private int flushThreshold;
+    private ScheduledExecutorService flusher;
+    private AtomicBoolean flushPending = new AtomicBoolean();
+    private volatile boolean isShutdown = false;
+
+    private AtomicLong packets = new AtomicLong();
+
+    public MonitoringReporter(Config config) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            host = "127.0.0.1";
+        }
+        this.serverAddress = host + ":" + config.getString("tcp.port");
+        this.monitoringAddress = new InetSocketAddress(config.getString("monitoring.host"), config.getInt("monitoring.port"));
+        this.flushThreshold = Math.max(1, config.getInt("monitoring.flush.threshold", 64));
+        long interval = Math.max(1, config.getInt("monitoring.flush.interval.ms", 100));
+        try {
+            this.socket = new DatagramSocket();
+        } catch (IOException e) {
+            System.err.println("Error IOException while creating monitoring socket: " + e);
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts a message forwarded on behalf of the given sender. Never blocks.
+     *
+     * @param sender the sender address of the message
+     */
+    public void record(String sender) {
+        counts.merge(sender, 1L, Long::sum);
+        if (counts.size() >= flushThreshold && flushPending.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // shut down, the final flush sends the counts
+            }
+        }
+    }
+
+    /**
+     * Sends all counts recorded so far.
+     */
+    private void flush() {
+        flushPending.set(false);
+        if (socket == null || counts.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream packet = new ByteArrayOutputStream(MAX_PACKET_SIZE);
+        for (String sender : counts.keySet()) {
+            // removing the entry is atomic with respect to record, so no count is lost
+            Long count = counts.remove(sender);
+            if (count == null) {
+                continue;
+            }
+            byte[] record = (serverAddress + " " + sender + " " + count + "\n").getBytes(StandardCharsets.UTF_8);
+            if (packet.size() > 0 && packet.size() + record.length > MAX_PACKET_SIZE) {
+                send(packet);
+            }
+            packet.write(record, 0, record.length);
+        }
+        if (packet.size() > 0) {
+            send(packet);
+        }
+    }
+
+    private void send(ByteArrayOutputStream packet) {
+        try {
+            socket.send(new DatagramPacket(packet.toByteArray(), packet.size(), monitoringAddress));
+            packets.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("Error IOException while sending monitoring packet: " + e);
+        }
+        packet.reset();
+    }
+
+    public int getPendingSenders() {
+        return counts.size();
+    }
+
+    public long getPackets() {
+        return packets.get();
+    }
+
+    /**
+     * Sends the remaining counts and closes the socket.
+     */
+    public void shutdown() {
+        if (isShutdown) {
+            return;
+        }
+        isShutdown = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
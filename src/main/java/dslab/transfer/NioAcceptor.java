@@ -0,0 +1,410 @@
+package dslab.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking DMTP front end of the transfer server. The accepting thread hands every new connection to one of a
+ * few event loops, each of which serves all of its connections with a single {@link Selector}: request lines are
+ * assembled from the received bytes, processed by the connection's {@link ClientSession} and answered without ever
+ * dedicating a thread to an idle client.
+ */
+public class NioAcceptor implements Runnable {
+
+    private ServerSocketChannel serverChannel;
+    private DeliveryEngine deliveryEngine;
+    private RateLimiter rateLimiter;
+    private EventLoop[] eventLoops;
+    private ExecutorService executor;
+    private AtomicInteger openConnections = new AtomicInteger();
+    private volatile boolean isDraining = false;
+
+    public NioAcceptor(ServerSocketChannel serverChannel, DeliveryEngine deliveryEngine, RateLimiter rateLimiter,
+                       int eventLoopCount) throws IOException {
+        this.serverChannel = serverChannel;
+        this.deliveryEngine = deliveryEngine;
+        this.rateLimiter = rateLimiter;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+        this.executor = Executors.newFixedThreadPool(eventLoops.length);
+    }
+
+    @Override
+    public void run() {
+        for (EventLoop eventLoop : eventLoops) {
+            executor.execute(eventLoop);
+        }
+        int next = 0;
+        try {
+            while (true) {
+                SocketChannel client = serverChannel.accept();
+                eventLoops[next].register(client);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (ClosedChannelException e) {
+            // the server channel has been closed by shutdown
+        } catch (IOException e) {
+            System.err.println("Error IOException while listening: " + e);
+        } finally {
+            if (!isDraining) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Starts draining: connections without a transaction in progress are closed, the others are kept until their
+     * client ends the session. Must be called before the server channel is closed.
+     */
+    public void beginDrain() {
+        isDraining = true;
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.execute(eventLoop::closeIdle);
+        }
+    }
+
+    /**
+     * Waits until all connections have been closed.
+     *
+     * @param deadline the {@link System#nanoTime()} after which to stop waiting
+     * @return true if all connections have been closed in time
+     */
+    public boolean awaitDrained(long deadline) throws InterruptedException {
+        while (openConnections.get() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    public void close() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Serves a share of the client connections on one thread.
+     */
+    private class EventLoop implements Runnable {
+
+        private Selector selector;
+        private Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs the task on the event loop thread, e.g. to continue a connection once its response is ready.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    registerPending();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            // closed while the selector was waiting, e.g. by shutdown
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // closed by shutdown
+            } catch (IOException e) {
+                System.err.println("Error IOException in event loop: " + e);
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel client;
+            while ((client = pending.poll()) != null) {
+                try {
+                    client.configureBlocking(false);
+                    String remoteAddress = ((InetSocketAddress) client.getRemoteAddress()).getAddress().getHostAddress();
+                    Connection connection = new Connection(client,
+                            new ClientSession(deliveryEngine, rateLimiter, remoteAddress, false), this);
+                    connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+                    openConnections.incrementAndGet();
+                    connection.respond(connection.session.greet());
+                } catch (IOException e) {
+                    try {
+                        client.close();
+                    } catch (IOException e1) {
+                        // Ignored because we cannot handle it
+                    }
+                }
+            }
+        }
+
+        void connectionClosed() {
+            openConnections.decrementAndGet();
+        }
+
+        /**
+         * Closes the connections of this loop that have no transaction in progress.
+         */
+        void closeIdle() {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isIdle()) {
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * Closes the connections and the selector on the event loop thread, which owns them; the loop ends once the
+         * selector is closed.
+         */
+        void close() {
+            execute(this::closeAll);
+        }
+
+        private void closeAll() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                // Ignored because we cannot handle it
+            }
+            SocketChannel client;
+            while ((client = pending.poll()) != null) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // Ignored because we cannot handle it
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one client connection: the bytes of the request line received so far and the responses not yet
+     * written. While a response is not ready yet (an accepted message is being spooled) the connection stops
+     * reading, so that responses are sent in request order.
+     */
+    private static class Connection {
+
+        private SocketChannel channel;
+        private ClientSession session;
+        private EventLoop eventLoop;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+        private ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private Queue<ByteBuffer> out = new ArrayDeque<>();
+        private boolean waiting;
+        // dropping the rest of a line that exceeded the maximum length
+        private boolean skipping;
+        private boolean closed;
+
+        Connection(SocketChannel channel, ClientSession session, EventLoop eventLoop) {
+            this.channel = channel;
+            this.session = session;
+            this.eventLoop = eventLoop;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            process();
+        }
+
+        /**
+         * Handles the complete request lines in the input buffer until it is empty or a response has to be waited
+         * for; in the latter case the remaining bytes stay in the buffer.
+         */
+        private void process() throws IOException {
+            byte[] bytes = in.array();
+            while (!waiting && !session.isClosed()) {
+                int start = in.position();
+                int end = start;
+                while (end < in.limit() && bytes[end] != '\n') {
+                    end++;
+                }
+                // one more byte for a \r that belongs to the terminator
+                if (!skipping && line.size() + end - start - 1 > session.getMaxLineLength()) {
+                    // too long, the rest of the line is dropped as it arrives instead of being buffered
+                    skipping = true;
+                    line.reset();
+                }
+                if (!skipping) {
+                    line.write(bytes, start, end - start);
+                }
+                if (end == in.limit()) {
+                    in.clear();
+                    return;
+                }
+                in.position(end + 1);
+                if (skipping) {
+                    skipping = false;
+                    respond(session.rejectLine());
+                } else {
+                    handleLine();
+                }
+            }
+            if (session.isClosed()) {
+                in.clear();
+            }
+        }
+
+        private void handleLine() throws IOException {
+            byte[] bytes = line.toByteArray();
+            int length = bytes.length;
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            line.reset();
+            if (length > session.getMaxLineLength()) {
+                respond(session.rejectLine());
+                return;
+            }
+            CompletableFuture<String> response;
+            try {
+                // the line's own array, the content of a data request is kept in it without another copy
+                response = session.handle(ByteBuffer.wrap(bytes, 0, length));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                return;
+            }
+            if (response.isDone()) {
+                respond(response.join());
+                return;
+            }
+            waiting = true;
+            updateInterest();
+            response.thenAccept(result -> eventLoop.execute(() -> resume(result)));
+        }
+
+        private void resume(String response) {
+            waiting = false;
+            try {
+                respond(response);
+                if (channel.isOpen()) {
+                    process();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void respond(String response) throws IOException {
+            if (response == null) {
+                // a line of a data block, nothing to answer
+                return;
+            }
+            out.add(ByteBuffer.wrap((response + "\n").getBytes(StandardCharsets.UTF_8)));
+            flush();
+        }
+
+        void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer buffer = out.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // the socket buffer is full, continue once the channel is writable again
+                    updateInterest();
+                    return;
+                }
+                out.poll();
+            }
+            if (session.isClosed()) {
+                close();
+            } else {
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            if (!out.isEmpty()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(waiting ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        boolean isIdle() {
+            return !waiting && out.isEmpty() && line.size() == 0 && session.isIdle();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            session.close();
+            if (key != null) {
+                key.cancel();
+                eventLoop.connectionClosed();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignored because we cannot handle it
+            }
+        }
+    }
+}
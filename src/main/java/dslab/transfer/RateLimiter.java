@@ -0,0 +1,161 @@
+package dslab.transfer;
+
+import dslab.util.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket rate limits for messages submitted to the transfer server, one bucket per sender address and one per
+ * remote IP address. A bucket refills at a constant rate up to its burst size and every message takes one token; a
+ * message finding an empty bucket is rejected instead of waiting. Each bucket is a single {@link AtomicLong} holding
+ * the time at which it will be full again (the generic cell rate algorithm), so taking a token is one compare-and-set.
+ */
+public class RateLimiter {
+
+    private Limit senders;
+    private Limit remoteAddresses;
+
+    public RateLimiter(Config config) {
+        this.senders = new Limit(config.getInt("rate.sender.per.second", 10), config.getInt("rate.sender.burst", 20));
+        this.remoteAddresses = new Limit(config.getInt("rate.ip.per.second", 50), config.getInt("rate.ip.burst", 100));
+    }
+
+    /**
+     * Takes a token for a message from the given sender over a connection from the given address.
+     *
+     * @param remoteAddress the IP address of the client
+     * @param sender the sender address of the message
+     * @return true if both buckets had a token, false if the message has to be rejected
+     */
+    public boolean tryAcquire(String remoteAddress, String sender) {
+        if (!remoteAddresses.tryAcquire(remoteAddress)) {
+            return false;
+        }
+        if (!senders.tryAcquire(sender)) {
+            // the message is rejected, it must not use up the token of the address
+            remoteAddresses.release(remoteAddress);
+            return false;
+        }
+        return true;
+    }
+
+    public Limit getSenders() {
+        return senders;
+    }
+
+    public Limit getRemoteAddresses() {
+        return remoteAddresses;
+    }
+
+    /**
+     * The buckets of one kind of key.
+     */
+    public static class Limit {
+
+        // sweep full buckets after this many acquisitions, so the map does not grow with every key ever seen
+        private static final int SWEEP_INTERVAL = 1024;
+
+        private Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+        private int perSecond;
+        private int burst;
+        // nanoseconds per token
+        private long interval;
+        // how far the bucket's full time may lie in the future
+        private long tolerance;
+        private AtomicLong acquisitions = new AtomicLong();
+        private AtomicLong limited = new AtomicLong();
+
+        /**
+         * @param perSecond the number of tokens added per second, 0 disables the limit
+         * @param burst the number of tokens a full bucket holds
+         */
+        public Limit(int perSecond, int burst) {
+            this.perSecond = perSecond;
+            this.burst = Math.max(1, burst);
+            this.interval = perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond : 0;
+            this.tolerance = interval * this.burst;
+        }
+
+        public boolean tryAcquire(String key) {
+            if (perSecond <= 0 || key == null) {
+                return true;
+            }
+            if (acquisitions.incrementAndGet() % SWEEP_INTERVAL == 0) {
+                sweep();
+            }
+            AtomicLong bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+            while (true) {
+                long now = System.nanoTime();
+                long full = bucket.get();
+                long next = Math.max(full, now) + interval;
+                if (next - now > tolerance) {
+                    limited.incrementAndGet();
+                    return false;
+                }
+                if (bucket.compareAndSet(full, next)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Gives back a token taken by {@link #tryAcquire(String)} for a message that was rejected after all.
+         */
+        public void release(String key) {
+            if (perSecond <= 0 || key == null) {
+                return;
+            }
+            AtomicLong bucket = buckets.get(key);
+            if (bucket == null) {
+                return;
+            }
+            while (true) {
+                long now = System.nanoTime();
+                long full = bucket.get();
+                if (full - now <= 0) {
+                    // already full again
+                    return;
+                }
+                if (bucket.compareAndSet(full, Math.max(full - interval, now))) {
+                    return;
+                }
+            }
+        }
+
+        private void sweep() {
+            long now = System.nanoTime();
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        }
+
+        /**
+         * @return the keys whose bucket is currently empty
+         */
+        public List<String> getLimitedKeys() {
+            long now = System.nanoTime();
+            List<String> keys = new ArrayList<>();
+            for (Map.Entry<String, AtomicLong> entry : buckets.entrySet()) {
+                if (entry.getValue().get() + interval - now > tolerance) {
+                    keys.add(entry.getKey());
+                }
+            }
+            return keys;
+        }
+
+        public int getPerSecond() {
+            return perSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public long getLimited() {
+            return limited.get();
+        }
+    }
+}
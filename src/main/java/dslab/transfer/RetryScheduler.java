@@ -0,0 +1,198 @@
+package dslab.transfer;
+
+import dslab.util.Config;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Defers deliveries that failed for a transient reason, e.g. because a mailbox server or the nameservers could not be
+ * reached. Consecutive failures are counted per destination (a mailbox server address, or a domain if it could not be
+ * resolved), and the next attempt to a destination is delayed exponentially with random jitter, so that all messages
+ * for an unavailable server back off together. Deferred deliveries wait in a {@link DelayQueue}; a single thread hands
+ * them back to the delivery engine once they are due, so the delivery workers never wait themselves.
+ */
+public class RetryScheduler {
+
+    private DelayQueue<DeferredDelivery> deferred = new DelayQueue<>();
+    private Map<String, Backoff> backoffs = new ConcurrentHashMap<>();
+    private Predicate<Delivery> resubmit;
+    private ExecutorService timer;
+    private int maxAttempts;
+    private long initialDelay;
+    private long maxDelay;
+
+    private AtomicLong scheduled = new AtomicLong();
+
+    public RetryScheduler(Config config) {
+        this(config.getInt("retry.max.attempts", 5),
+                config.getInt("retry.initial.delay.ms", 1000),
+                config.getInt("retry.max.delay.ms", 60000));
+    }
+
+    /**
+     * @param maxAttempts the number of attempts after which a delivery is given up
+     * @param initialDelay the delay (in milliseconds) after the first failure of a destination
+     * @param maxDelay the upper bound (in milliseconds) of the delay
+     */
+    public RetryScheduler(int maxAttempts, long initialDelay, long maxDelay) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Starts handing due deliveries to the given consumer. A delivery it does not accept, e.g. because the queue is
+     * full, is deferred once more by the initial delay.
+     *
+     * @param resubmit queues a delivery without blocking, returns false if it could not be queued
+     */
+    public void start(Predicate<Delivery> resubmit) {
+        this.resubmit = resubmit;
+        this.timer = Executors.newSingleThreadExecutor();
+        timer.execute(this::run);
+    }
+
+    private void run() {
+        while (true) {
+            DeferredDelivery due;
+            try {
+                due = deferred.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!resubmit.test(due.delivery)) {
+                deferred.add(new DeferredDelivery(due.delivery, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelay)));
+            }
+        }
+    }
+
+    /**
+     * @return true if a delivery that failed now may be attempted again
+     */
+    public boolean mayRetry(Delivery delivery) {
+        return delivery.getAttempts() + 1 < maxAttempts;
+    }
+
+    /**
+     * Records a failed attempt to the given destination and extends its backoff.
+     */
+    public void failed(String destination) {
+        backoffs.computeIfAbsent(destination, k -> new Backoff()).failed();
+    }
+
+    /**
+     * Records a successful attempt to the given destination, so the next failure starts with the initial delay again.
+     */
+    public void succeeded(String destination) {
+        backoffs.remove(destination);
+    }
+
+    /**
+     * Schedules the next attempt of a delivery once the backoff of all the destinations it failed for has expired.
+     *
+     * @param delivery the delivery, already narrowed to the domains that failed
+     * @param destinations the destinations it failed for
+     */
+    public void defer(Delivery delivery, Set<String> destinations) {
+        defer(delivery, destinations, 0);
+    }
+
+    /**
+     * Schedules the next attempt of a delivery once the backoff of all the destinations it failed for has expired,
+     * but not before the given time.
+     *
+     * @param notBefore the earliest {@link System#nanoTime()} of the next attempt, e.g. when an open circuit lets
+     * trials through again
+     */
+    public void defer(Delivery delivery, Set<String> destinations, long notBefore) {
+        long due = Math.max(System.nanoTime(), notBefore);
+        for (String destination : destinations) {
+            Backoff backoff = backoffs.get(destination);
+            if (backoff != null) {
+                due = Math.max(due, backoff.nextAttempt);
+            }
+        }
+        scheduled.incrementAndGet();
+        deferred.add(new DeferredDelivery(delivery, due));
+    }
+
+    /**
+     * @return the delay (in milliseconds) before the next attempt after the given number of consecutive failures,
+     * without jitter
+     */
+    long delayAfter(int failures) {
+        long delay = initialDelay;
+        for (int i = 1; i < failures && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxDelay);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public int getDeferredCount() {
+        return deferred.size();
+    }
+
+    public long getScheduled() {
+        return scheduled.get();
+    }
+
+    public int getBackoffCount() {
+        return backoffs.size();
+    }
+
+    /**
+     * Stops handing out deliveries. Deferred deliveries stay in the spool and are attempted again after a restart.
+     */
+    public void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    private class Backoff {
+        private int failures;
+        private volatile long nextAttempt;
+
+        synchronized void failed() {
+            failures++;
+            long delay = delayAfter(failures);
+            // jitter between half and the full delay, so deferred deliveries do not retry in lockstep
+            long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            nextAttempt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(jittered);
+        }
+    }
+
+    private static class DeferredDelivery implements Delayed {
+        private Delivery delivery;
+        private long due;
+
+        DeferredDelivery(Delivery delivery, long due) {
+            this.delivery = delivery;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(due, ((DeferredDelivery) other).due);
+        }
+    }
+}
@@ -1,32 +1,38 @@
 package dslab.transfer;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.Set;
 import java.util.concurrent.*;
 
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
-import dslab.Message;
-import dslab.nameserver.INameserver;
 import dslab.nameserver.INameserverRemote;
 import dslab.util.Config;
+import dslab.util.HandlerExecutors;
 
 public class TransferServer implements ITransferServer, Runnable {
 
     private Config config;
     private ServerSocket listener;
+    private ServerSocketChannel listenerChannel;
     private ExecutorService executorClients;
-    private ExecutorService executorMailbox;
+    private DeliveryEngine deliveryEngine;
+    private RateLimiter rateLimiter;
     private Shell shell;
-    private boolean isShutdown = false;
-    private BlockingQueue<Message> messages;
+    private volatile NioAcceptor nioAcceptor;
+    // the handlers of the blocking acceptor, to wait for and close them when draining
+    private Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet();
+    private volatile boolean isShutdown = false;
 
     //for the decentralised domain lookup;
     private Registry registry;
@@ -45,9 +51,8 @@ public class TransferServer implements ITransferServer, Runnable {
         shell = new Shell(in, out);
         shell.register(this);
         shell.setPrompt(componentId + "> ");
-        executorClients = Executors.newCachedThreadPool();
-        executorMailbox = Executors.newCachedThreadPool();
-        messages = new LinkedBlockingQueue<>( 500);
+        executorClients = HandlerExecutors.newPerTaskExecutor(config);
+        rateLimiter = new RateLimiter(config);
     }
 
     @Override
@@ -55,7 +60,13 @@ public class TransferServer implements ITransferServer, Runnable {
 
         //open socket for this server;
         try {
-            listener = new ServerSocket(config.getInt("tcp.port"));
+            if (isNonBlocking()) {
+                listenerChannel = ServerSocketChannel.open();
+                listenerChannel.bind(new InetSocketAddress(config.getInt("tcp.port")));
+                listener = listenerChannel.socket();
+            } else {
+                listener = new ServerSocket(config.getInt("tcp.port"));
+            }
         } catch (IOException e) {
             throw new UncheckedIOException("Error while creating server socket", e);
         }
@@ -70,32 +81,112 @@ public class TransferServer implements ITransferServer, Runnable {
             System.err.println("Error NotBoundExcepiton while looking for rootNameserver in the registry: " + e);
         }
 
+        deliveryEngine = new DeliveryEngine(config, rootNameserverRemote);
+        deliveryEngine.start();
+
         ClientHandler clientThread;
         executorClients.execute(shell);
         System.out.println("Server is up!");
 
+        if (isNonBlocking()) {
+            //serve all clients from a few selector threads
+            try {
+                nioAcceptor = new NioAcceptor(listenerChannel, deliveryEngine, rateLimiter, config.getInt("nio.event.loops", 2));
+                nioAcceptor.run();
+            } catch (IOException e) {
+                System.err.println("Error IOException while starting event loops: " + e);
+            } finally {
+                if (!isShutdown) {
+                    close();
+                }
+            }
+            return;
+        }
+
         //listen for incoming clients and deal with them;
         try {
             while (!isShutdown) {
-                clientThread = new ClientHandler(listener.accept(), config, messages, rootNameserverRemote);
+                clientThread = new ClientHandler(listener.accept(), deliveryEngine, rateLimiter);
+                clientHandlers.removeIf(ClientHandler::isFinished);
+                clientHandlers.add(clientThread);
                 executorClients.execute(clientThread);
             }
         } catch (SocketException e) {
-            System.err.println("Error SocketException while listening: " + e);
+            if (!isShutdown) {
+                System.err.println("Error SocketException while listening: " + e);
+            }
         } catch (IOException e) {
             System.err.println("Error IOException while listening: " + e);
         } finally {
-            close();
+            // on shutdown the shell thread drains and closes the server
+            if (!isShutdown) {
+                close();
+            }
         }
     }
 
-    private void close() {
-        if (!executorClients.isShutdown()) {
-            executorClients.shutdown();
+    private boolean isNonBlocking() {
+        return "nio".equalsIgnoreCase(config.getString("tcp.acceptor", "blocking").trim());
+    }
+
+    /**
+     * Stops accepting connections, lets the client sessions finish their transactions and forwards the queued
+     * messages, all within the configured drain timeout. Messages still queued after the timeout stay in the spool and
+     * are delivered after the next start.
+     */
+    private void drain() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getInt("shutdown.drain.timeout.ms", 10000));
+        if (deliveryEngine == null) {
+            return;
+        }
+        deliveryEngine.beginDrain();
+        NioAcceptor acceptor = nioAcceptor;
+        if (acceptor != null) {
+            acceptor.beginDrain();
+        }
+        closeListener();
+        try {
+            boolean sessionsDone;
+            if (acceptor != null) {
+                sessionsDone = acceptor.awaitDrained(deadline);
+                acceptor.close();
+            } else {
+                sessionsDone = awaitClientHandlers(deadline);
+            }
+            if (!sessionsDone) {
+                System.err.println("Drain timeout reached, closing the remaining client connections");
+            }
+            if (!deliveryEngine.awaitDrained(deadline)) {
+                System.err.println("Drain timeout reached, " + deliveryEngine.getQueueSize() + " queued message(s) stay in the spool");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        if (!executorMailbox.isShutdown()) {
-            executorMailbox.shutdown();
+    }
+
+    private boolean awaitClientHandlers(long deadline) throws InterruptedException {
+        for (ClientHandler handler : clientHandlers) {
+            handler.closeIfIdle();
         }
+        boolean done = true;
+        while (!clientHandlers.isEmpty()) {
+            clientHandlers.removeIf(ClientHandler::isFinished);
+            if (clientHandlers.isEmpty()) {
+                break;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                done = false;
+                break;
+            }
+            Thread.sleep(20);
+        }
+        for (ClientHandler handler : clientHandlers) {
+            handler.close();
+        }
+        return done;
+    }
+
+    private void closeListener() {
         if (listener != null && !listener.isClosed()) {
             try {
                 listener.close();
@@ -103,13 +194,71 @@ public class TransferServer implements ITransferServer, Runnable {
                 System.err.println("Error IOException while closing server socket: " + e.getMessage());
             }
         }
+    }
+
+    private void close() {
+        if (!executorClients.isShutdown()) {
+            executorClients.shutdown();
+        }
+        if (deliveryEngine != null) {
+            deliveryEngine.shutdown();
+        }
+        closeListener();
+    }
+
+    @Command
+    public void stats() {
+        if (deliveryEngine == null) {
+            shell.out().println("delivery engine not started");
+            return;
+        }
+        shell.out().println("queue " + deliveryEngine.getQueueSize() + "/" + deliveryEngine.getQueueCapacity());
+        DeliveryQueue queue = deliveryEngine.getQueue();
+        for (int lane = 0; lane < DeliveryQueue.laneCount(); lane++) {
+            shell.out().println("lane " + DeliveryQueue.nameOf(lane) + " " + queue.size(lane) + "/" + queue.capacity(lane));
+        }
+        shell.out().println("workers " + deliveryEngine.getBusyWorkers() + "/" + deliveryEngine.getWorkerCount() + " busy");
+        shell.out().println("delivered " + deliveryEngine.getDelivered());
+        shell.out().println("rejected " + deliveryEngine.getRejected());
+        MailboxConnectionPool pool = deliveryEngine.getConnectionPool();
+        shell.out().println("connections " + pool.getIdleCount() + " idle, " + pool.getOpened() + " opened, " + pool.getReused() + " reused");
+        DomainResolver resolver = deliveryEngine.getDomainResolver();
+        shell.out().println("resolver " + resolver.getCacheSize() + " cached, " + resolver.getHits() + " hits, " + resolver.getMisses() + " misses");
+        shell.out().println("zones " + resolver.getZoneCount() + " cached, " + resolver.getZoneHits() + " hits");
+        RetryScheduler retryScheduler = deliveryEngine.getRetryScheduler();
+        shell.out().println("retries " + retryScheduler.getDeferredCount() + " deferred, " + retryScheduler.getScheduled() + " scheduled, " + retryScheduler.getBackoffCount() + " destination(s) backing off");
+        CircuitBreaker circuitBreaker = deliveryEngine.getCircuitBreaker();
+        shell.out().println("circuits " + circuitBreaker.getOpenCount() + " open, " + circuitBreaker.getShortCircuited() + " short-circuited");
+        MonitoringReporter monitoringReporter = deliveryEngine.getMonitoringReporter();
+        shell.out().println("monitoring " + monitoringReporter.getPendingSenders() + " sender(s) pending, " + monitoringReporter.getPackets() + " packets sent");
+        MessageSpool spool = deliveryEngine.getSpool();
+        if (spool != null) {
+            shell.out().println("spool " + spool.getPendingCount() + " pending in " + spool.getSegmentCount() + " segment(s)");
+        }
+    }
+
+    @Command
+    public void limits() {
+        printLimit("sender", rateLimiter.getSenders());
+        printLimit("ip", rateLimiter.getRemoteAddresses());
+    }
 
+    private void printLimit(String name, RateLimiter.Limit limit) {
+        if (limit.getPerSecond() <= 0) {
+            shell.out().println(name + " unlimited");
+            return;
+        }
+        shell.out().println(name + " " + limit.getPerSecond() + "/s burst " + limit.getBurst() + ", " + limit.getLimited() + " limited");
+        for (String key : limit.getLimitedKeys()) {
+            shell.out().println("  " + key);
+        }
     }
 
     @Override
     @Command
     public void shutdown() {
         isShutdown = true;
+        drain();
         close();
         System.out.println("Exiting transfer server shell.");
         throw new StopShellException();
@@ -0,0 +1,133 @@
+package dslab.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Collects the lines of a message body received as a data block. Small bodies are kept in memory; once a body grows
+ * beyond the threshold it is written to a temporary file and handed out memory mapped, so a session never holds more
+ * than the threshold of a body on the heap, however large the message. The file is deleted as soon as the mapping is
+ * no longer referenced.
+ */
+public class BodyBuffer {
+
+    private static final byte NEWLINE = '\n';
+
+    private int threshold;
+    private Path directory;
+    private byte[] bytes = new byte[256];
+    // the bytes in the array, which is the write buffer of the file once the body has been spilled
+    private int count;
+    private FileChannel file;
+    private long size;
+    private boolean empty = true;
+
+    /**
+     * @param threshold the number of bytes kept in memory before the body is written to a file
+     * @param directory the directory for the temporary files
+     */
+    public BodyBuffer(int threshold, Path directory) {
+        this.threshold = Math.max(1, threshold);
+        this.directory = directory;
+    }
+
+    /**
+     * Appends a line to the body, separated from the previous line by {@code \n}.
+     *
+     * @param line the line without terminator, between position and limit; the buffer itself is left unchanged
+     * @throws IOException if the body had to be written to a file and that failed
+     */
+    public void appendLine(ByteBuffer line) throws IOException {
+        if (!empty) {
+            append(ByteBuffer.wrap(new byte[]{NEWLINE}));
+        }
+        empty = false;
+        append(line.duplicate());
+    }
+
+    private void append(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (count + length > threshold) {
+            spill();
+            if (length > threshold) {
+                // larger than the write buffer, straight to the file
+                size += write(data);
+                return;
+            }
+        }
+        if (count + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.min(Math.max(bytes.length * 2, count + length), threshold));
+        }
+        data.get(bytes, count, length);
+        count += length;
+        size += length;
+    }
+
+    private void spill() throws IOException {
+        if (file == null) {
+            Files.createDirectories(directory);
+            Path path = Files.createTempFile(directory, "body-", ".tmp");
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        write(ByteBuffer.wrap(bytes, 0, count));
+        count = 0;
+    }
+
+    private int write(ByteBuffer data) throws IOException {
+        int written = 0;
+        while (data.hasRemaining()) {
+            written += file.write(data);
+        }
+        return written;
+    }
+
+    /**
+     * @return the number of bytes of the body so far
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Completes the body. The buffer cannot be used afterwards.
+     *
+     * @return the body, either sharing the in-memory array or mapped from the file
+     * @throws IOException if the file could not be written or mapped
+     */
+    public ByteBuffer finish() throws IOException {
+        if (file == null) {
+            return ByteBuffer.wrap(bytes, 0, count);
+        }
+        try {
+            spill();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Message body too large: " + size + " bytes");
+            }
+            return file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Drops the body, e.g. because the session ended in the middle of the data block.
+     */
+    public void discard() {
+        bytes = null;
+        if (file != null) {
+            try {
+                // deletes the file, a mapping handed out by finish() stays valid
+                file.close();
+            } catch (IOException e) {
+                // Ignored because we cannot handle it
+            }
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package dslab.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the executors that run socket handlers. The execution mode is read from the {@code execution.mode} property
+ * of the component config: {@code platform} (default) runs every handler on its own platform thread, {@code virtual}
+ * uses virtual threads. Virtual threads are looked up reflectively, so the code still compiles for older Java versions;
+ * if the running JVM does not provide them, the platform mode is used.
+ */
+public final class HandlerExecutors {
+
+    private HandlerExecutors() {
+        // static utility class
+    }
+
+    /**
+     * Returns whether handlers of the given component should run on virtual threads, and the JVM supports them.
+     *
+     * @param config the component config
+     * @return true if virtual threads are configured and available
+     */
+    public static boolean isVirtual(Config config) {
+        if (!"virtual".equalsIgnoreCase(config.getString("execution.mode", "platform").trim())) {
+            return false;
+        }
+        if (virtualThreadFactory() == null) {
+            System.err.println("Virtual threads are not supported by this JVM, falling back to platform threads");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates an executor that starts a new thread for every submitted handler.
+     *
+     * @param config the component config
+     * @return the executor
+     */
+    public static ExecutorService newPerTaskExecutor(Config config) {
+        if (isVirtual(config)) {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Could not create virtual thread executor: " + e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Creates an executor with a fixed number of long-lived threads.
+     *
+     * @param config the component config
+     * @param threads the number of threads
+     * @return the executor
+     */
+    public static ExecutorService newFixedExecutor(Config config, int threads) {
+        if (isVirtual(config)) {
+            return Executors.newFixedThreadPool(threads, virtualThreadFactory());
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
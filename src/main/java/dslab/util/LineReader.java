@@ -0,0 +1,110 @@
+package dslab.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads request lines from a socket as raw bytes, without decoding them. Unlike {@link java.io.BufferedReader} it does
+ * not turn every line into a {@link String}, so a server can decode the short command lines and hand the content of
+ * a long line on as it was received. Lines are bounded: the bytes of a line longer than the maximum are skipped
+ * without being buffered, so a client cannot make the server hold an arbitrarily long line in memory.
+ */
+public class LineReader {
+
+    private InputStream in;
+    private int maxLineLength;
+    private byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    // the line being assembled, reused for every line
+    private byte[] line = new byte[256];
+
+    /**
+     * @param in the stream to read from
+     * @param maxLineLength the maximum number of bytes of a line, excluding the terminator
+     */
+    public LineReader(InputStream in, int maxLineLength) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Reads the next line. Both {@code \n} and {@code \r\n} terminate a line, the terminator is not returned.
+     *
+     * @return the bytes of the line in a buffer of their own, or null if the stream ended before another line started
+     * @throws LineTooLongException if the line exceeded the maximum length; it has been skipped up to its terminator,
+     *                              so the next line can be read
+     * @throws IOException if reading the stream fails
+     */
+    public ByteBuffer readLine() throws IOException {
+        int length = 0;
+        boolean skipping = false;
+        while (true) {
+            if (position == limit && !fill()) {
+                if (length == 0) {
+                    return null;
+                }
+                break;
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            int count = position - start;
+            // one more byte for a \r that belongs to the terminator
+            if (!skipping && length + count - 1 > maxLineLength) {
+                skipping = true;
+            }
+            if (!skipping) {
+                if (length + count > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+                }
+                System.arraycopy(buffer, start, line, length, count);
+                length += count;
+            }
+            if (position < limit) {
+                // skip the \n
+                position++;
+                break;
+            }
+        }
+        if (skipping) {
+            throw new LineTooLongException(maxLineLength);
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (length > maxLineLength) {
+            throw new LineTooLongException(maxLineLength);
+        }
+        return ByteBuffer.wrap(Arrays.copyOf(line, length));
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer);
+        if (read < 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Signals a line that exceeded the maximum length and has been skipped.
+     */
+    public static class LineTooLongException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public LineTooLongException(int maxLineLength) {
+            super("Line longer than " + maxLineLength + " bytes");
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package dslab.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The header and fields of a log record being encoded, with room for the length and checksum at the start. A record
+ * on disk is the length of the rest of the record (int), its CRC32 (int) and the rest; the parts following this buffer,
+ * e.g. a message body, are written as they are, without being copied into it.
+ */
+public class RecordBuffer extends ByteArrayOutputStream {
+
+    /**
+     * The bytes of the length and checksum at the start of every record.
+     */
+    public static final int HEADER_SIZE = 8;
+
+    public RecordBuffer(int size) {
+        super(size);
+    }
+
+    public ByteBuffer toBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * Fills in the length and checksum of the record made of this buffer and the given parts following it. The
+     * encoded fields must start after {@link #HEADER_SIZE} placeholder bytes.
+     *
+     * @param parts the parts following this buffer, null parts are skipped; the buffers themselves are left unchanged
+     * @return this buffer, ready to be written
+     */
+    public ByteBuffer seal(ByteBuffer... parts) {
+        CRC32 crc = new CRC32();
+        crc.update(buf, HEADER_SIZE, count - HEADER_SIZE);
+        int length = count - HEADER_SIZE;
+        for (ByteBuffer part : parts) {
+            if (part != null) {
+                length += part.remaining();
+                crc.update(part.duplicate());
+            }
+        }
+        ByteBuffer record = toBuffer();
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+}
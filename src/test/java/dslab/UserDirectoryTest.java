@@ -0,0 +1,60 @@
+package dslab;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import dslab.util.Config;
+
+/**
+ * Tests the lookups of the {@link UserDirectory}.
+ */
+public class UserDirectoryTest {
+
+    @Test
+    public void isAccount_readsTheAccountsOfTheUserConfig() {
+        UserDirectory users = new UserDirectory(new Config("users-earth-planet"));
+
+        assertThat(users.isAccount("trillian"), is(true));
+        assertThat(users.isAccount("arthur"), is(true));
+        assertThat(users.isAccount("zaphod"), is(false));
+        assertThat(users.get("trillian"), is(nullValue()));
+    }
+
+    @Test(timeout = 15000)
+    public void getOrCreate_concurrentCalls_createOneUser() throws Exception {
+        UserDirectory users = new UserDirectory(new Config("users-earth-planet"));
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<User>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit((Callable<User>) () -> {
+                    start.await();
+                    return users.getOrCreate("trillian");
+                }));
+            }
+            start.countDown();
+            User user = results.get(0).get();
+            for (Future<User> result : results) {
+                assertThat(result.get(), is(sameInstance(user)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(users.get("trillian"), is(sameInstance(users.getOrCreate("trillian"))));
+        assertThat(users.size(), is(1));
+    }
+}
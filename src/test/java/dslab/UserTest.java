@@ -0,0 +1,64 @@
+package dslab;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Tests the message ids of the {@link User}.
+ */
+public class UserTest {
+
+    @Test
+    public void addMessage_afterDelete_doesNotReuseIds() {
+        User user = new User("trillian");
+
+        assertThat(user.addMessage(new Message()), is(1));
+        assertThat(user.addMessage(new Message()), is(2));
+        user.getMessages().remove(2);
+        user.getMessages().remove(1);
+
+        assertThat(user.addMessage(new Message()), is(3));
+        assertThat(user.getMessages().firstKey(), is(3));
+    }
+
+    @Test(timeout = 15000)
+    public void addMessage_concurrentDeliveries_assignsEveryIdOnce() throws Exception {
+        User user = new User("trillian");
+        int threads = 8;
+        int messagesPerThread = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int j = 0; j < messagesPerThread; j++) {
+                        user.addMessage(new Message());
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int count = threads * messagesPerThread;
+        assertThat(user.getMessages().size(), is(count));
+        assertThat(user.getMessages().firstKey(), is(1));
+        assertThat(user.getMessages().lastKey(), is(count));
+    }
+}
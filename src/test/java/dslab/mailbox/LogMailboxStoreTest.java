@@ -0,0 +1,204 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.Message;
+
+/**
+ * Tests storing, deleting and recovering inboxes with the {@link LogMailboxStore}.
+ */
+public class LogMailboxStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void add_messagesOfTwoUsers_keepsInboxesApart() throws Exception {
+        LogMailboxStore store = open(1024 * 1024);
+        assertThat(store.add("trillian", message("first")), is(1));
+        assertThat(store.add("trillian", message("second")), is(2));
+        assertThat(store.add("arthur", message("other")), is(1));
+
+        NavigableMap<Integer, Message> inbox = store.list("trillian");
+        Message shown = store.get("trillian", 2);
+        store.close();
+
+        assertThat(inbox.keySet(), is(new TreeSet<>(Arrays.asList(1, 2))));
+        assertThat(inbox.get(1).getSubject(), is("first"));
+        assertThat(inbox.get(1).getSender(), is("arthur@earth.planet"));
+        assertThat(shown.getSubject(), is("second"));
+        assertThat(shown.getRecipients(), is(Arrays.asList("trillian@earth.planet", "zaphod@univer.ze")));
+        assertThat(shown.getData(), is("data of second"));
+        assertThat(shown.getHash(), is("hash of second"));
+    }
+
+    @Test
+    public void open_afterRestart_recoversMessagesNotDeleted() throws Exception {
+        LogMailboxStore store = open(1024 * 1024);
+        store.add("trillian", message("first"));
+        store.add("trillian", message("second"));
+        store.add("trillian", message("third"));
+        assertThat(store.delete("trillian", 3), is(true));
+        assertThat(store.delete("trillian", 3), is(false));
+        store.close();
+
+        LogMailboxStore restarted = open(1024 * 1024);
+        NavigableMap<Integer, Message> inbox = restarted.list("trillian");
+        Message second = restarted.get("trillian", 2);
+        // the id of the deleted message is not handed out again
+        int next = restarted.add("trillian", message("fourth"));
+        restarted.close();
+
+        assertThat(inbox.size(), is(2));
+        assertThat(inbox.get(1).getSubject(), is("first"));
+        assertThat(second.getData(), is("data of second"));
+        assertThat(next, is(4));
+    }
+
+    @Test
+    public void delete_allMessagesOfSegment_deletesSegment() throws Exception {
+        // small segments, every message starts a new one
+        LogMailboxStore store = open(64);
+        for (int i = 0; i < 5; i++) {
+            store.add("trillian", message("message " + i));
+        }
+        assertThat(countSegments(), is(5L));
+
+        store.delete("trillian", 1);
+        store.delete("trillian", 2);
+        assertThat(Files.exists(segment(1)), is(false));
+        assertThat(Files.exists(segment(2)), is(false));
+        assertThat(Files.exists(segment(3)), is(true));
+
+        // a gap does not let later segments be deleted before the older one
+        store.delete("trillian", 4);
+        assertThat(Files.exists(segment(4)), is(true));
+        assertThat(store.getSegmentCount(), is((int) countSegments()));
+        store.close();
+
+        LogMailboxStore restarted = open(64);
+        NavigableMap<Integer, Message> inbox = restarted.list("trillian");
+        restarted.close();
+        assertThat(inbox.keySet(), is(new TreeSet<>(Arrays.asList(3, 5))));
+    }
+
+    @Test
+    public void delete_compactionFails_stillDeletesMessage() throws Exception {
+        LogMailboxStore store = open(64);
+        store.add("trillian", message("first"));
+        store.add("trillian", message("second"));
+        // a segment that cannot be deleted
+        Files.delete(segment(1));
+        Files.createDirectory(segment(1));
+        Files.createFile(segment(1).resolve("blocking"));
+
+        boolean deleted = store.delete("trillian", 1);
+        int next = store.add("trillian", message("third"));
+        NavigableMap<Integer, Message> inbox = store.list("trillian");
+        store.close();
+
+        assertThat(deleted, is(true));
+        assertThat(next, is(3));
+        assertThat(inbox.keySet(), is(new TreeSet<>(Arrays.asList(2, 3))));
+    }
+
+    @Test
+    public void open_truncatedLastRecord_ignoresTail() throws Exception {
+        LogMailboxStore store = open(1024 * 1024);
+        store.add("trillian", message("complete"));
+        store.close();
+        Path segment;
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            segment = files.filter(path -> path.toString().endsWith(".log")).findFirst().get();
+        }
+        // simulates a crash in the middle of writing a record
+        Files.write(segment, new byte[]{0, 0, 1, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        LogMailboxStore restarted = open(1024 * 1024);
+        NavigableMap<Integer, Message> inbox = restarted.list("trillian");
+        Message message = restarted.get("trillian", 1);
+        restarted.close();
+
+        assertThat(inbox.size(), is(1));
+        assertThat(message.getSubject(), is("complete"));
+    }
+
+    @Test
+    public void get_receivedBody_keepsBytesUnchanged() throws Exception {
+        LogMailboxStore store = open(1024 * 1024);
+        byte[] line = "data Grüße vom Magrathea".getBytes(StandardCharsets.UTF_8);
+        Message message = message("body");
+        message.setBody(ByteBuffer.wrap(line, 5, line.length - 5).slice());
+        store.add("trillian", message);
+        store.close();
+
+        LogMailboxStore restarted = open(1024 * 1024);
+        Message shown = restarted.get("trillian", 1);
+        Message unknown = restarted.get("trillian", 2);
+        restarted.close();
+
+        assertThat(shown.getBody(), is(ByteBuffer.wrap(line, 5, line.length - 5)));
+        // a slice of the mapped segment, not a copy on the heap
+        assertThat(shown.getBody().isDirect(), is(true));
+        assertThat(shown.getData(), is("Grüße vom Magrathea"));
+        assertThat(unknown, is(nullValue()));
+    }
+
+    @Test
+    public void get_messagesAddedAfterMapping_mapsGrownSegment() throws Exception {
+        LogMailboxStore store = open(1024 * 1024);
+        store.add("trillian", message("first"));
+        Message first = store.get("trillian", 1);
+        store.add("trillian", message("second"));
+        Message second = store.get("trillian", 2);
+        store.close();
+
+        assertThat(first.getData(), is("data of first"));
+        assertThat(second.getData(), is("data of second"));
+        assertThat(second.getSubject(), is("second"));
+    }
+
+    private LogMailboxStore open(long segmentSize) throws IOException {
+        LogMailboxStore store = new LogMailboxStore(folder.getRoot().toPath(), segmentSize);
+        store.open();
+        return store;
+    }
+
+    private static Message message(String subject) {
+        Message message = new Message();
+        message.setSender("arthur@earth.planet");
+        message.getRecipients().add("trillian@earth.planet");
+        message.getRecipients().add("zaphod@univer.ze");
+        message.setSubject(subject);
+        message.setData("data of " + subject);
+        message.setHash("hash of " + subject);
+        return message;
+    }
+
+    private Path segment(int number) {
+        return folder.getRoot().toPath().resolve("segment-" + number + ".log");
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package dslab.mailbox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dslab.UserDirectory;
+import dslab.protocol.DMTP;
+import dslab.util.Config;
+
+/**
+ * Measures how delivery on the mailbox server scales with the number of parallel DMTP senders, each sending to a user
+ * of its own. Every sender runs the transactions through a {@link DMTP} state machine of its own and delivers them with
+ * {@link MailboxHandler#deliver} into a {@link MemoryMailboxStore}, the way a session does, without the sockets in
+ * between. The sender counts run with the per-user delivery and with a lock on the whole user directory, as delivery
+ * was synchronized before. The number of senders doubles up to the number of cores, or the second argument. Not a unit
+ * test; run it manually, e.g.
+ *
+ * <pre>java -cp build/classes/java/main:build/classes/java/test:build/resources/main:lib/* dslab.mailbox.MailboxDeliveryBenchmark 200000 8</pre>
+ */
+public class MailboxDeliveryBenchmark {
+
+    private static final String DOMAIN = "earth.planet";
+
+    public static void main(String[] args) throws Exception {
+        int messagesPerSender = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int maxSenders = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        System.out.println("locking    senders  messages/s  speedup");
+        for (boolean global : new boolean[]{true, false}) {
+            long single = 0;
+            for (int senders = 1; senders <= maxSenders; senders *= 2) {
+                // the first run of each mode warms up the JIT
+                if (senders == 1) {
+                    run(global, senders, messagesPerSender);
+                }
+                long rate = run(global, senders, messagesPerSender);
+                if (senders == 1) {
+                    single = rate;
+                }
+                System.out.println(String.format("%-10s %7d  %,10d  %6.2fx", global ? "global" : "per-user", senders,
+                        rate, (double) rate / Math.max(1, single)));
+            }
+        }
+    }
+
+    private static long run(boolean global, int senders, int messagesPerSender) throws Exception {
+        Config userConfig = new Config("users-earth-planet");
+        for (int i = 0; i < senders; i++) {
+            userConfig.setProperty("user" + i, "12345");
+        }
+        UserDirectory users = new UserDirectory(userConfig);
+        MailboxStore store = new MemoryMailboxStore(users);
+
+        ExecutorService executor = Executors.newFixedThreadPool(senders);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < senders; i++) {
+                String recipient = "user" + i + "@" + DOMAIN;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    send(users, store, recipient, global, messagesPerSender);
+                    return null;
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+            long nanos = System.nanoTime() - begin;
+            for (int i = 0; i < senders; i++) {
+                int delivered = users.get("user" + i).getMessages().size();
+                if (delivered != messagesPerSender) {
+                    throw new IllegalStateException(delivered + " of " + messagesPerSender + " messages delivered");
+                }
+            }
+            return (long) senders * messagesPerSender * 1_000_000_000L / Math.max(1, nanos);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void send(UserDirectory users, MailboxStore store, String recipient, boolean global, int messages)
+            throws IOException {
+        DMTP dmtp = new DMTP();
+        dmtp.validateRequest("", users.getAccounts(), DOMAIN);
+        String[] transaction = {
+                "begin",
+                "from trillian@earth.planet",
+                "to " + recipient,
+                "subject hello from the benchmark",
+                "data the quick brown fox jumps over the lazy dog",
+                "send"
+        };
+        for (int i = 0; i < messages; i++) {
+            for (String request : transaction) {
+                String response = dmtp.validateRequest(request, users.getAccounts(), DOMAIN);
+                if (!response.startsWith("ok")) {
+                    throw new IllegalStateException(request + ": " + response);
+                }
+            }
+            if (global) {
+                synchronized (users) {
+                    MailboxHandler.deliver(users, store, DOMAIN, dmtp.getMessage());
+                }
+            } else {
+                MailboxHandler.deliver(users, store, DOMAIN, dmtp.getMessage());
+            }
+        }
+    }
+}
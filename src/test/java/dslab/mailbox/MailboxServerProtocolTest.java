@@ -1,36 +1,58 @@
 package dslab.mailbox;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
-import dslab.ComponentFactory;
 import dslab.Constants;
 import dslab.JunitSocketClient;
 import dslab.Sockets;
 import dslab.TestBase;
+import dslab.TestInputStream;
 import dslab.util.Config;
 
 public class MailboxServerProtocolTest extends TestBase {
 
     private static final Log LOG = LogFactory.getLog(MailboxServerProtocolTest.class);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private String componentId = "mailbox-earth-planet";
 
+    private Config config;
     private IMailboxServer component;
     private int dmapServerPort;
     private int dmtpServerPort;
 
     @Before
     public void setUp() throws Exception {
-        component = ComponentFactory.createMailboxServer(componentId, in, out);
-        dmapServerPort = new Config(componentId).getInt("dmap.tcp.port");
-        dmtpServerPort = new Config(componentId).getInt("dmtp.tcp.port");
+        // every test starts with empty inboxes
+        config = new Config(componentId);
+        config.setProperty("mailbox.store.dir", folder.getRoot().getPath());
+        dmapServerPort = config.getInt("dmap.tcp.port");
+        dmtpServerPort = config.getInt("dmtp.tcp.port");
+        start();
+    }
 
+    private void start() throws Exception {
+        component = new MailboxServer(componentId, config, in, out);
         new Thread(component).start();
 
         LOG.info("Waiting for server sockets to appear");
@@ -92,6 +114,167 @@ public class MailboxServerProtocolTest extends TestBase {
         }
     }
 
+    @Test(timeout = 15000)
+    public void acceptDmtpDataBlock_showDmapMessage() throws Exception {
+
+        // accept a multi-line message via DMTP, lines starting with a dot are dot-stuffed
+        try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from arthur@earth.planet", "ok");
+            client.sendAndVerify("to trillian@earth.planet", "ok 1");
+            client.sendAndVerify("subject block", "ok");
+            client.send("data");
+            client.send("first line");
+            client.send("..dotted line");
+            client.send("send");
+            client.sendAndVerify(".", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            client.send("show 1");
+            String showResult = client.listen();
+            err.checkThat(showResult, containsString("first line"));
+            err.checkThat(showResult, containsString(".dotted line"));
+            err.checkThat(showResult, not(containsString("..dotted line")));
+
+            client.sendAndVerify("logout", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void acceptLargeDmtpDataBlock_showDmapMessage() throws Exception {
+
+        // larger than data.spool.threshold, so the body is spooled to a file
+        try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from arthur@earth.planet", "ok");
+            client.sendAndVerify("to trillian@earth.planet", "ok 1");
+            client.sendAndVerify("subject large", "ok");
+            client.send("data");
+            for (int i = 0; i < 2000; i++) {
+                client.send("line " + i + " of a message that does not fit into the memory of a session");
+            }
+            client.sendAndVerify(".", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            client.send("show 1");
+            String showResult = client.listen();
+            err.checkThat(showResult, containsString("line 0 of a message"));
+            err.checkThat(showResult, containsString("line 1999 of a message"));
+
+            client.sendAndVerify("logout", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void restart_storedMessages_areKeptUntilDeleted() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from arthur@earth.planet", "ok");
+            client.sendAndVerify("to trillian@earth.planet", "ok 1");
+            client.sendAndVerify("subject kept", "ok");
+            client.sendAndVerify("data kept across restarts", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        restart();
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+            client.send("show 1");
+            err.checkThat(client.listen(), containsString("data kept across restarts"));
+            client.sendAndVerify("delete 1", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        restart();
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+            client.sendAndVerify("show 1", "error unknown message id");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    private void restart() throws Exception {
+        in.addLine("shutdown");
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+        in = new TestInputStream();
+        start();
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentDmtpMessages_toOneUser_getDistinctIds() throws Exception {
+        int senders = 8;
+        int messagesPerSender = 5;
+
+        // deliver to trillian from several connections at once
+        ExecutorService executor = Executors.newFixedThreadPool(senders);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < senders; i++) {
+                results.add(executor.submit(() -> {
+                    try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+                        client.verify("ok DMTP");
+                        for (int j = 0; j < messagesPerSender; j++) {
+                            client.sendAndVerify("begin", "ok");
+                            client.sendAndVerify("from arthur@earth.planet", "ok");
+                            client.sendAndVerify("to trillian@earth.planet", "ok 1");
+                            client.sendAndVerify("subject concurrent", "ok");
+                            client.sendAndVerify("data hello from junit", "ok");
+                            client.sendAndVerify("send", "ok");
+                        }
+                        client.sendAndVerify("quit", "ok bye");
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+
+            client.send("list");
+            Set<String> ids = new HashSet<>();
+            for (String line : client.listen().split("\\R")) {
+                if (line.contains("arthur@earth.planet concurrent")) {
+                    ids.add(line.substring(0, line.indexOf(' ')));
+                }
+            }
+            Set<String> expected = new HashSet<>();
+            for (int id = 1; id <= senders * messagesPerSender; id++) {
+                expected.add(String.valueOf(id));
+            }
+            err.checkThat(ids, is(expected));
+
+            client.sendAndVerify("logout", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
     @Test(timeout = 15000)
     public void dmtpMessage_withUnknownRecipient_returnsError() throws Exception {
 
@@ -89,4 +89,24 @@ public class MonitoringServerProtocolTest extends TestBase {
         assertThat(output, containsString("127.0.0.1:42 2"));
         assertThat(output, containsString("127.0.0.1:43 1"));
     }
+
+    @Test(timeout = 15000)
+    public void addresses_batchedPacket_countsAllRecords() throws Exception {
+        LOG.info("Sending one monitoring packet with several records to monitoring socket");
+        try (DatagramSocket socket = new DatagramSocket()) {
+            String str = "127.0.0.1:42 foo@example.com 3\n127.0.0.1:43 bar@example.com 2\n127.0.0.1:42 foo@example.com\n";
+
+            socket.send(new DatagramPacket(str.getBytes(), str.length(), addr));
+        }
+
+        Thread.sleep(2500);
+        in.addLine("addresses");
+        in.addLine("servers");
+        Thread.sleep(2500);
+        String output = String.join(",", out.getLines());
+        assertThat(output, containsString("foo@example.com 4"));
+        assertThat(output, containsString("bar@example.com 2"));
+        assertThat(output, containsString("127.0.0.1:42 4"));
+        assertThat(output, containsString("127.0.0.1:43 2"));
+    }
 }
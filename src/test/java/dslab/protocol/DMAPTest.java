@@ -0,0 +1,80 @@
+package dslab.protocol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.Message;
+import dslab.UserDirectory;
+import dslab.mailbox.MemoryMailboxStore;
+import dslab.util.Config;
+
+/**
+ * Tests the answers of the {@link DMAP} state machine to show requests, against a store that counts its lookups.
+ */
+public class DMAPTest {
+
+    private AtomicInteger lookups = new AtomicInteger();
+    private MemoryMailboxStore store;
+    private DMAP dmap;
+
+    @Before
+    public void setUp() {
+        Config userConfig = new Config("users-earth-planet");
+        UserDirectory users = new UserDirectory(userConfig);
+        store = new MemoryMailboxStore(users) {
+            @Override
+            public Message get(String user, int id) {
+                lookups.incrementAndGet();
+                return super.get(user, id);
+            }
+        };
+        dmap = new DMAP(userConfig, users, store, "mailbox-earth-planet");
+        dmap.processInput("");
+        assertThat(dmap.processInput("login trillian 12345"), is("ok"));
+    }
+
+    @Test
+    public void processShow_existingMessage_looksUpOnce() {
+        Message message = new Message();
+        message.setSender("arthur@earth.planet");
+        message.getRecipients().add("trillian@earth.planet");
+        message.setSubject("hello");
+        message.setData("data of hello");
+        store.add("trillian", message);
+
+        String response = decode(dmap.processShow("show 1"));
+
+        assertThat(response.startsWith("from arthur@earth.planet"), is(true));
+        assertThat(response.endsWith("ok"), is(true));
+        assertThat(lookups.get(), is(1));
+    }
+
+    @Test
+    public void processShow_unknownId_answersErrorAfterOneLookup() {
+        assertThat(decode(dmap.processShow("show 7")), is("error unknown message id"));
+        assertThat(lookups.get(), is(1));
+    }
+
+    @Test
+    public void processInput_nonNumericId_answersUnknownMessageId() {
+        assertThat(dmap.processInput("show seven"), is("error unknown message id"));
+        assertThat(dmap.processInput("delete seven"), is("error unknown message id"));
+        assertThat(dmap.processInput("show"), is("error no message id given"));
+        assertThat(lookups.get(), is(0));
+    }
+
+    private static String decode(ByteBuffer[] parts) {
+        StringBuilder response = new StringBuilder();
+        for (ByteBuffer part : parts) {
+            response.append(StandardCharsets.UTF_8.decode(part));
+        }
+        return response.toString();
+    }
+}
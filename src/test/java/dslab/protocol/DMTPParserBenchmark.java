@@ -0,0 +1,148 @@
+package dslab.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how many DMTP request lines per second the {@link DMTP} state machine parses, compared with the regular
+ * expression based parsing it used before ({@link RegexParser}, kept here as the baseline). Each round parses complete
+ * transactions; the first rounds warm up the JIT. Not a unit test; run it manually, e.g.
+ *
+ * <pre>java -cp build/classes/java/main:build/classes/java/test:build/resources/main:lib/* dslab.protocol.DMTPParserBenchmark 2000000</pre>
+ */
+public class DMTPParserBenchmark {
+
+    private static final String[] TRANSACTION = {
+            "begin",
+            "from trillian@earth.planet",
+            "to arthur@earth.planet, zaphod@univer.ze, ford@betelgeuse.planet",
+            "subject hello from the benchmark",
+            "data the quick brown fox jumps over the lazy dog",
+            "hash dGhlIHF1aWNrIGJyb3duIGZveCBqdW1wcyBvdmVyIHRoZSBsYXp5IGRvZw==",
+            "send"
+    };
+
+    public static void main(String[] args) {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int transactions = Math.max(1, lines / TRANSACTION.length);
+        System.out.println("parser   lines/s");
+        for (int round = 0; round < 5; round++) {
+            boolean warmup = round < 2;
+            report("regex", warmup, transactions, runRegex(transactions));
+            report("dmtp", warmup, transactions, runDmtp(transactions));
+        }
+    }
+
+    private static long runDmtp(int transactions) {
+        long start = System.nanoTime();
+        int ok = 0;
+        DMTP dmtp = new DMTP();
+        dmtp.processInput("");
+        for (int i = 0; i < transactions; i++) {
+            for (String request : TRANSACTION) {
+                if (dmtp.processInput(request).startsWith("ok")) {
+                    ok++;
+                }
+            }
+        }
+        check(ok, transactions);
+        return System.nanoTime() - start;
+    }
+
+    private static long runRegex(int transactions) {
+        long start = System.nanoTime();
+        int ok = 0;
+        RegexParser parser = new RegexParser();
+        for (int i = 0; i < transactions; i++) {
+            for (String request : TRANSACTION) {
+                if (parser.processInput(request).startsWith("ok")) {
+                    ok++;
+                }
+            }
+        }
+        check(ok, transactions);
+        return System.nanoTime() - start;
+    }
+
+    private static void check(int ok, int transactions) {
+        if (ok != transactions * TRANSACTION.length) {
+            throw new IllegalStateException(ok + " of " + transactions * TRANSACTION.length + " requests accepted");
+        }
+    }
+
+    private static void report(String parser, boolean warmup, int transactions, long nanos) {
+        if (!warmup) {
+            long linesPerSecond = (long) transactions * TRANSACTION.length * 1_000_000_000L / Math.max(1, nanos);
+            System.out.println(String.format("%-8s %,d", parser, linesPerSecond));
+        }
+    }
+
+    /**
+     * The request parsing of the transaction state as it was implemented with {@link String#split(String)} and a
+     * pattern compiled per request.
+     */
+    private static class RegexParser {
+
+        private String subject;
+        private String sender;
+        private String data;
+        private String hash;
+        private List<String> recipients = new ArrayList<>();
+
+        String processInput(String request) {
+            String[] parts;
+            if (request.equalsIgnoreCase("begin")) {
+                recipients = new ArrayList<>();
+                return "ok";
+            } else if (request.startsWith("subject ")) {
+                parts = request.split("^(subject )");
+                if (parts.length <= 1) {
+                    return "error no subject";
+                }
+                subject = parts[1];
+                return "ok";
+            } else if (request.startsWith("from ")) {
+                parts = request.split("^(from )");
+                if (parts.length <= 1) {
+                    return "error no sender";
+                }
+                Matcher matcher = Pattern.compile("(^\\w+@\\w+\\.\\w+$)").matcher(parts[1]);
+                if (!matcher.find()) {
+                    return "error invalid sender";
+                }
+                sender = matcher.group();
+                return "ok";
+            } else if (request.startsWith("data")) {
+                parts = request.split("^(data )");
+                if (parts.length <= 1) {
+                    return "error no content";
+                }
+                data = parts[1];
+                return "ok";
+            } else if (request.startsWith("to ")) {
+                parts = request.split("^(to )");
+                if (parts.length <= 1) {
+                    return "error no recipients";
+                }
+                recipients.clear();
+                Matcher matcher = Pattern.compile("(\\w+@\\w+\\.\\w+)").matcher(parts[1]);
+                while (matcher.find()) {
+                    recipients.add(matcher.group());
+                }
+                return recipients.isEmpty() ? "error no recipients" : "ok " + recipients.size();
+            } else if (request.startsWith("hash")) {
+                parts = request.split("^(hash )");
+                if (parts.length <= 1) {
+                    return "error no hash value";
+                }
+                hash = parts[1];
+                return "ok";
+            } else if (request.equalsIgnoreCase("send")) {
+                return subject != null && sender != null && data != null && hash != null ? "ok" : "error";
+            }
+            return "error protocol error";
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package dslab.protocol;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests the request parsing of the {@link DMTP} state machine.
+ */
+public class DMTPTest {
+
+    private static final Set<String> USERS = new HashSet<>(Arrays.asList("trillian", "arthur"));
+
+    @Test
+    public void processInput_sender_mustBeOneAddress() {
+        DMTP dmtp = inTransaction();
+
+        assertThat(dmtp.processInput("from trillian"), is("error invalid sender"));
+        assertThat(dmtp.processInput("from trillian@earth.planet arthur@earth.planet"), is("error invalid sender"));
+        assertThat(dmtp.processInput("from "), is("error no sender"));
+        assertThat(dmtp.processInput("from trillian@earth.planet"), is("ok"));
+        assertThat(dmtp.getMessage().getSender(), is("trillian@earth.planet"));
+    }
+
+    @Test
+    public void processInput_recipients_extractsEveryAddress() {
+        DMTP dmtp = inTransaction();
+
+        assertThat(dmtp.processInput("to arthur@earth.planet, zaphod@univer.ze;ford@betelgeuse"), is("ok 2"));
+        assertThat(dmtp.getMessage().getRecipients(), is(Arrays.asList("arthur@earth.planet", "zaphod@univer.ze")));
+
+        assertThat(dmtp.processInput("to x.arthur@earth.planet.ze"), is("ok 1"));
+        assertThat(dmtp.getMessage().getRecipients(), is(Arrays.asList("arthur@earth.planet")));
+
+        assertThat(dmtp.processInput("to arthur, zaphod"), is("error no recipients"));
+    }
+
+    @Test
+    public void localNamesOf_recipients_matchesDomainLiterally() {
+        String recipients = "arthur@earth.planet trillian@earthXplanet zaphod@univer.ze ford@earth.planet";
+
+        assertThat(DMTP.localNamesOf(recipients, "earth.planet"), is(Arrays.asList("arthur", "ford")));
+        assertThat(DMTP.localNamesOf(recipients, "univer.ze"), is(Arrays.asList("zaphod")));
+        assertThat(DMTP.localNamesOf(recipients, "earth+planet"), is(Arrays.asList()));
+    }
+
+    @Test
+    public void processInput_malformedRequests_returnErrors() {
+        DMTP dmtp = inTransaction();
+
+        assertThat(dmtp.processInput("subject "), is("error no subject"));
+        assertThat(dmtp.processInput("datax"), is("error no content"));
+        assertThat(dmtp.processInput("hash"), is("error no hash value"));
+        assertThat(dmtp.processInput("Subject hello"), is("error protocol error"));
+    }
+
+    @Test
+    public void validateRequest_recipients_reportsUnknownUsersOfTheDomain() {
+        DMTP dmtp = new DMTP();
+        dmtp.validateRequest("", USERS, "earth.planet");
+        dmtp.validateRequest("begin", USERS, "earth.planet");
+
+        assertThat(dmtp.validateRequest("to arthur@earth.planet, ford@earth.planet, zaphod@univer.ze", USERS,
+                "earth.planet"), is("error unknown recipient ford "));
+        assertThat(dmtp.validateRequest("to trillian@earth.planet, zaphod@univer.ze", USERS, "earth.planet"),
+                is("ok 1"));
+    }
+
+    private static DMTP inTransaction() {
+        DMTP dmtp = new DMTP();
+        dmtp.processInput("");
+        dmtp.processInput("begin");
+        return dmtp;
+    }
+}
@@ -0,0 +1,77 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Tests the state transitions of the {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest {
+
+    private static final String ADDRESS = "127.0.0.1:12552";
+
+    @Test
+    public void tryAcquire_belowFailureThreshold_staysClosed() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000, 1);
+
+        breaker.failed(ADDRESS);
+        breaker.failed(ADDRESS);
+
+        assertThat(breaker.tryAcquire(ADDRESS), is(true));
+        assertThat(breaker.getRetryAt(ADDRESS), is(0L));
+    }
+
+    @Test
+    public void tryAcquire_afterRepeatedFailures_shortCircuits() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000, 1);
+
+        for (int i = 0; i < 3; i++) {
+            breaker.failed(ADDRESS);
+        }
+
+        assertThat(breaker.tryAcquire(ADDRESS), is(false));
+        assertThat(breaker.tryAcquire("127.0.0.1:12556"), is(true));
+        assertThat(breaker.getOpenCount(), is(1));
+        assertThat(breaker.getShortCircuited(), is(1L));
+    }
+
+    @Test
+    public void tryAcquire_openTimePassed_grantsLimitedTrials() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 10, 1);
+        breaker.failed(ADDRESS);
+        Thread.sleep(20);
+
+        assertThat(breaker.tryAcquire(ADDRESS), is(true));
+        assertThat(breaker.tryAcquire(ADDRESS), is(false));
+    }
+
+    @Test
+    public void succeeded_halfOpenTrial_closesCircuit() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 10, 1);
+        breaker.failed(ADDRESS);
+        Thread.sleep(20);
+        breaker.tryAcquire(ADDRESS);
+
+        breaker.succeeded(ADDRESS);
+
+        assertThat(breaker.tryAcquire(ADDRESS), is(true));
+        assertThat(breaker.tryAcquire(ADDRESS), is(true));
+        assertThat(breaker.getOpenCount(), is(0));
+    }
+
+    @Test
+    public void failed_halfOpenTrial_reopensCircuit() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 50, 1);
+        for (int i = 0; i < 3; i++) {
+            breaker.failed(ADDRESS);
+        }
+        Thread.sleep(60);
+        breaker.tryAcquire(ADDRESS);
+
+        breaker.failed(ADDRESS);
+
+        assertThat(breaker.tryAcquire(ADDRESS), is(false));
+    }
+}
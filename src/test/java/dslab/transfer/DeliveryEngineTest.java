@@ -0,0 +1,120 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.Message;
+import dslab.nameserver.INameserverRemote;
+import dslab.util.Config;
+
+/**
+ * Tests accepting and forwarding messages with the {@link DeliveryEngine}, against a nameserver that counts the
+ * lookups of the workers and can be made to fail.
+ */
+public class DeliveryEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AtomicInteger lookups = new AtomicInteger();
+    // makes the nameserver fail with an unexpected exception
+    private volatile boolean broken;
+    private DeliveryEngine engine;
+
+    @After
+    public void tearDown() {
+        if (engine != null) {
+            engine.shutdown();
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void submit_spoolWriteFails_doesNotForwardMessage() throws Exception {
+        Config config = new Config("transfer-1");
+        config.setProperty("spool.dir", folder.getRoot().getPath());
+        engine = new DeliveryEngine(config, new CountingNameserver());
+        engine.start();
+        // every write to the spool fails from now on
+        engine.getSpool().close();
+
+        CompletableFuture<Boolean> accepted = engine.submit(message(), true);
+        try {
+            accepted.get(5, TimeUnit.SECONDS);
+            fail("the message must not be accepted");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IOException.class));
+        }
+
+        assertThat(engine.awaitDrained(System.nanoTime() + TimeUnit.SECONDS.toNanos(5)), is(true));
+        assertThat(lookups.get(), is(0));
+        assertThat(engine.getDelivered(), is(0L));
+        assertThat(engine.getRejected(), is(1L));
+    }
+
+    @Test(timeout = 15000)
+    public void submit_lookupThrows_defersDelivery() throws Exception {
+        broken = true;
+        engine = new DeliveryEngine(new Config("transfer-1"), new CountingNameserver());
+        engine.start();
+        Message message = message();
+        // two domains, one of the lookups runs on another thread
+        message.getRecipients().add("zaphod@univer.ze");
+
+        assertThat(engine.submit(message, true).get(5, TimeUnit.SECONDS), is(true));
+
+        assertThat(engine.awaitDrained(System.nanoTime() + TimeUnit.SECONDS.toNanos(5)), is(true));
+        assertThat(engine.getRetryScheduler().getDeferredCount(), is(1));
+        assertThat(engine.getDelivered(), is(0L));
+    }
+
+    private static Message message() {
+        Message message = new Message();
+        message.setSender("trillian@earth.planet");
+        message.getRecipients().add("arthur@earth.planet");
+        message.setSubject("not stored");
+        message.setData("data that never reached the spool");
+        return message;
+    }
+
+    private class CountingNameserver implements INameserverRemote {
+
+        @Override
+        public void registerNameserver(String domain, INameserverRemote nameserver) {
+        }
+
+        @Override
+        public void registerMailboxServer(String domain, String address) {
+        }
+
+        @Override
+        public INameserverRemote getNameserver(String zone) {
+            lookups.incrementAndGet();
+            if (broken) {
+                throw new IllegalStateException("nameserver broken");
+            }
+            return null;
+        }
+
+        @Override
+        public String lookup(String username) {
+            lookups.incrementAndGet();
+            if (broken) {
+                throw new IllegalStateException("nameserver broken");
+            }
+            return null;
+        }
+    }
+}
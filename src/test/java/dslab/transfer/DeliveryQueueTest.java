@@ -0,0 +1,78 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import dslab.Message;
+
+/**
+ * Tests the lane capacities and the weighted dequeuing of the {@link DeliveryQueue}.
+ */
+public class DeliveryQueueTest {
+
+    @Test
+    public void offer_fullLane_rejectsOnlyThatLane() throws Exception {
+        DeliveryQueue queue = new DeliveryQueue(new int[]{10, 2, 10}, new int[]{4, 1, 2});
+
+        assertThat(queue.offer(delivery(DeliveryQueue.BULK)), is(true));
+        assertThat(queue.offer(delivery(DeliveryQueue.BULK)), is(true));
+        assertThat(queue.offer(delivery(DeliveryQueue.BULK), 10, TimeUnit.MILLISECONDS), is(false));
+
+        assertThat(queue.offer(delivery(DeliveryQueue.INTERACTIVE)), is(true));
+        assertThat(queue.size(), is(3));
+    }
+
+    @Test
+    public void take_severalLanesWaiting_servesLanesByWeight() throws Exception {
+        DeliveryQueue queue = new DeliveryQueue(new int[]{100, 100, 100}, new int[]{4, 1, 2});
+        for (int i = 0; i < 70; i++) {
+            queue.offer(delivery(DeliveryQueue.INTERACTIVE));
+            queue.offer(delivery(DeliveryQueue.BULK));
+            queue.offer(delivery(DeliveryQueue.BOUNCE));
+        }
+
+        int[] taken = new int[DeliveryQueue.laneCount()];
+        for (int i = 0; i < 70; i++) {
+            taken[queue.take().getLane()]++;
+        }
+
+        assertThat(taken[DeliveryQueue.INTERACTIVE], is(40));
+        assertThat(taken[DeliveryQueue.BULK], is(10));
+        assertThat(taken[DeliveryQueue.BOUNCE], is(20));
+    }
+
+    @Test
+    public void take_bulkBacklog_interactiveDoesNotWaitBehindIt() throws Exception {
+        DeliveryQueue queue = new DeliveryQueue(new int[]{100, 100, 100}, new int[]{4, 1, 2});
+        for (int i = 0; i < 100; i++) {
+            queue.offer(delivery(DeliveryQueue.BULK));
+        }
+        queue.offer(delivery(DeliveryQueue.INTERACTIVE));
+
+        List<Delivery> first = new ArrayList<>();
+        queue.drainTo(first, 2);
+
+        assertThat(first.get(0).getLane(), is(DeliveryQueue.INTERACTIVE));
+    }
+
+    @Test
+    public void poll_emptyQueue_returnsNullAfterTimeout() throws Exception {
+        DeliveryQueue queue = new DeliveryQueue(new int[]{1, 1, 1}, new int[]{1, 1, 1});
+
+        assertThat(queue.poll(10, TimeUnit.MILLISECONDS), is(nullValue()));
+    }
+
+    private static Delivery delivery(int lane) {
+        Message message = new Message();
+        message.setSender("trillian@earth.planet");
+        message.getRecipients().add("arthur@earth.planet");
+        return new Delivery(message, lane);
+    }
+}
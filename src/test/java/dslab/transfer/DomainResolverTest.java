@@ -0,0 +1,130 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.nameserver.INameserverRemote;
+
+/**
+ * Tests the caching behaviour of the {@link DomainResolver} against an in-memory nameserver hierarchy.
+ */
+public class DomainResolverTest {
+
+    private AtomicInteger remoteCalls;
+    private FakeNameserver root;
+
+    @Before
+    public void setUp() {
+        remoteCalls = new AtomicInteger();
+        root = new FakeNameserver();
+        FakeNameserver planet = new FakeNameserver();
+        root.zones.put("planet", planet);
+        planet.mailboxes.put("earth", "127.0.0.1:12552");
+        planet.mailboxes.put("mars", "127.0.0.1:12556");
+    }
+
+    @Test
+    public void resolve_knownDomainTwice_queriesNameserversOnce() {
+        DomainResolver resolver = new DomainResolver(root, 60000, 60000, 100);
+
+        assertThat(resolver.resolve("earth.planet"), is("127.0.0.1:12552"));
+        int callsAfterFirstLookup = remoteCalls.get();
+        assertThat(resolver.resolve("earth.planet"), is("127.0.0.1:12552"));
+
+        assertThat(remoteCalls.get(), is(callsAfterFirstLookup));
+        assertThat(resolver.getHits(), is(1L));
+        assertThat(resolver.getMisses(), is(1L));
+    }
+
+    @Test
+    public void resolve_unknownDomain_isCachedNegatively() {
+        DomainResolver resolver = new DomainResolver(root, 60000, 60000, 100);
+
+        assertThat(resolver.resolve("venus.planet"), is(nullValue()));
+        int callsAfterFirstLookup = remoteCalls.get();
+        assertThat(resolver.resolve("venus.planet"), is(nullValue()));
+
+        assertThat(remoteCalls.get(), is(callsAfterFirstLookup));
+    }
+
+    @Test
+    public void resolve_expiredEntry_queriesNameserversAgain() throws Exception {
+        DomainResolver resolver = new DomainResolver(root, 1, 1, 100);
+
+        resolver.resolve("earth.planet");
+        int callsAfterFirstLookup = remoteCalls.get();
+        Thread.sleep(5);
+        resolver.resolve("earth.planet");
+
+        assertThat(remoteCalls.get() > callsAfterFirstLookup, is(true));
+    }
+
+    @Test
+    public void resolve_fullCache_evictsLeastRecentlyUsedDomain() {
+        DomainResolver resolver = new DomainResolver(root, 60000, 60000, 2);
+
+        resolver.resolve("earth.planet");
+        resolver.resolve("mars.planet");
+        resolver.resolve("earth.planet");
+        resolver.resolve("venus.planet");
+        assertThat(resolver.getCacheSize(), is(2));
+
+        int calls = remoteCalls.get();
+        resolver.resolve("earth.planet");
+        assertThat(remoteCalls.get(), is(calls));
+        resolver.resolve("mars.planet");
+        assertThat(remoteCalls.get() > calls, is(true));
+    }
+
+    @Test
+    public void resolve_newDomainInKnownZone_startsAtCachedZoneNameserver() {
+        DomainResolver resolver = new DomainResolver(root, 60000, 60000, 100);
+
+        resolver.resolve("earth.planet");
+        int rootCalls = root.calls;
+        assertThat(resolver.resolve("mars.planet"), is("127.0.0.1:12556"));
+
+        assertThat(root.calls, is(rootCalls));
+        assertThat(resolver.getZoneHits(), is(1L));
+    }
+
+    private class FakeNameserver implements INameserverRemote {
+
+        private Map<String, INameserverRemote> zones = new HashMap<>();
+        private Map<String, String> mailboxes = new HashMap<>();
+        private int calls;
+
+        @Override
+        public void registerNameserver(String domain, INameserverRemote nameserver) {
+            zones.put(domain, nameserver);
+        }
+
+        @Override
+        public void registerMailboxServer(String domain, String address) {
+            mailboxes.put(domain, address);
+        }
+
+        @Override
+        public INameserverRemote getNameserver(String zone) throws RemoteException {
+            remoteCalls.incrementAndGet();
+            calls++;
+            return zones.get(zone);
+        }
+
+        @Override
+        public String lookup(String username) throws RemoteException {
+            remoteCalls.incrementAndGet();
+            calls++;
+            return mailboxes.get(username);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package dslab.transfer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import dslab.Constants;
+import dslab.Sockets;
+import dslab.TestInputStream;
+import dslab.TestOutputStream;
+import dslab.util.Config;
+import dslab.util.HandlerExecutors;
+
+/**
+ * Compares the execution modes of the transfer server: opens idle DMTP sessions against a server in each mode until the
+ * requested number is reached or connecting fails, and reports the number of sessions, platform threads and heap used per
+ * session. Not a unit test; run it manually, e.g.
+ *
+ * <pre>java -cp build/classes/java/main:build/classes/java/test:build/resources/main:lib/* dslab.transfer.ExecutionModeBenchmark 5000</pre>
+ */
+public class ExecutionModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        System.out.println("mode      acceptor  sessions  threads  heap/session");
+        for (String mode : new String[]{"platform", "virtual"}) {
+            for (String acceptor : new String[]{"blocking", "nio"}) {
+                run(mode, acceptor, sessions);
+            }
+        }
+    }
+
+    private static void run(String mode, String acceptor, int sessions) throws Exception {
+        Config config = new Config("transfer-1");
+        config.setProperty("execution.mode", mode);
+        config.setProperty("tcp.acceptor", acceptor);
+        if ("virtual".equals(mode) && !HandlerExecutors.isVirtual(config)) {
+            System.out.println(String.format("%-9s %-9s skipped, the JVM has no virtual threads", mode, acceptor));
+            return;
+        }
+
+        TestInputStream in = new TestInputStream();
+        TransferServer server = new TransferServer("transfer-1", config, in, new TestOutputStream());
+        new Thread(server).start();
+        int port = config.getInt("tcp.port");
+        Sockets.waitForSocket("localhost", port, Constants.COMPONENT_STARTUP_WAIT);
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        List<Socket> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < sessions; i++) {
+                Socket socket = new Socket("localhost", port);
+                clients.add(socket);
+                new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            }
+        } catch (IOException e) {
+            System.out.println("connecting failed after " + clients.size() + " sessions: " + e);
+        }
+        long heapPerSession = (usedHeap() - heapBefore) / Math.max(1, clients.size());
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+        System.out.println(String.format("%-9s %-9s %8d  %7d  %10d B", mode, acceptor, clients.size(),
+                threads, heapPerSession));
+
+        for (Socket socket : clients) {
+            socket.close();
+        }
+        in.addLine("shutdown");
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,96 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.util.Config;
+
+/**
+ * Tests that the {@link MailboxConnectionPool} does not hand out or block on sessions to mailbox servers that went
+ * away, against a server that greets and then stays silent.
+ */
+public class MailboxConnectionPoolTest {
+
+    private ServerSocket server;
+    private List<Socket> accepted = new CopyOnWriteArrayList<>();
+    private MailboxConnectionPool pool;
+    private String address;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        address = "127.0.0.1:" + server.getLocalPort();
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    accepted.add(socket);
+                    new PrintWriter(socket.getOutputStream(), true).println("ok DMTP");
+                }
+            } catch (IOException e) {
+                // closed by tearDown
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Config config = new Config("transfer-1");
+        config.setProperty("mailbox.read.timeout.ms", "200");
+        pool = new MailboxConnectionPool(config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        server.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void read_serverStaysSilent_timesOut() throws Exception {
+        MailboxSession session = pool.borrow(address);
+        session.writeLine("begin");
+        session.flush();
+
+        try {
+            session.getReader().readLine();
+            fail("the read must time out");
+        } catch (SocketTimeoutException e) {
+            // a broken session, the worker is free again
+        }
+        session.invalidate();
+        pool.release(session);
+    }
+
+    @Test(timeout = 5000)
+    public void borrow_serverClosedIdleSession_opensNewSession() throws Exception {
+        MailboxSession first = pool.borrow(address);
+        pool.release(first);
+        // the mailbox server drops the idle connection
+        accepted.get(0).close();
+        Thread.sleep(100);
+
+        MailboxSession second = pool.borrow(address);
+
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(second.isReused(), is(false));
+        pool.release(second);
+    }
+}
@@ -0,0 +1,209 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.Message;
+
+/**
+ * Tests appending, completing and replaying messages with the {@link MessageSpool}.
+ */
+public class MessageSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recover_afterRestart_returnsMessagesNotCompleted() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MessageSpool spool = new MessageSpool(directory, 1024 * 1024);
+        spool.recover();
+        Message first = message("first");
+        Message second = message("second");
+        spool.append(first).get(5, TimeUnit.SECONDS);
+        spool.append(second).get(5, TimeUnit.SECONDS);
+        spool.complete(first);
+        spool.close();
+
+        MessageSpool restarted = new MessageSpool(directory, 1024 * 1024);
+        List<Message> recovered = restarted.recover();
+        restarted.close();
+
+        assertThat(recovered.size(), is(1));
+        assertThat(recovered.get(0).getId(), is(second.getId()));
+        assertThat(recovered.get(0).getSubject(), is("second"));
+        assertThat(recovered.get(0).getSender(), is("trillian@earth.planet"));
+        assertThat(recovered.get(0).getRecipients().size(), is(2));
+        assertThat(recovered.get(0).getData(), is("data of second"));
+    }
+
+    @Test
+    public void recover_deferredMessage_resumesWithPendingDomains() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MessageSpool spool = new MessageSpool(directory, 1024 * 1024);
+        spool.recover();
+        Message message = message("partial");
+        spool.append(message).get(5, TimeUnit.SECONDS);
+        Delivery delivery = new Delivery(message);
+        // forwarded to earth.planet, univer.ze could not be reached
+        delivery.failed(Collections.singleton("univer.ze"));
+        spool.defer(message, delivery.getDomains(), delivery.getAttempts());
+        spool.close();
+
+        MessageSpool restarted = new MessageSpool(directory, 1024 * 1024);
+        List<Message> recovered = restarted.recover();
+        MessageSpool.DeferredState state = restarted.takeDeferred(recovered.get(0));
+        restarted.close();
+        Delivery resumed = new Delivery(recovered.get(0));
+        resumed.resume(state.getDomains(), state.getAttempts());
+
+        assertThat(resumed.getDomains(), is(Collections.singleton("univer.ze")));
+        assertThat(resumed.getAttempts(), is(1));
+        assertThat(resumed.getRecipients("univer.ze"), is(Collections.singletonList("zaphod@univer.ze")));
+    }
+
+    @Test
+    public void recover_afterRestart_continuesWithNewIds() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MessageSpool spool = new MessageSpool(directory, 1024 * 1024);
+        spool.recover();
+        Message first = message("first");
+        spool.append(first).get(5, TimeUnit.SECONDS);
+        spool.close();
+
+        MessageSpool restarted = new MessageSpool(directory, 1024 * 1024);
+        restarted.recover();
+        Message second = message("second");
+        restarted.append(second).get(5, TimeUnit.SECONDS);
+        restarted.close();
+
+        assertThat(second.getId() > first.getId(), is(true));
+    }
+
+    @Test
+    public void complete_allMessagesOfSegment_deletesSegment() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        // small segments, every message starts a new one
+        MessageSpool spool = new MessageSpool(directory, 64);
+        spool.recover();
+        Message[] messages = new Message[5];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = message("message " + i);
+            spool.append(messages[i]).get(5, TimeUnit.SECONDS);
+        }
+        for (Message message : messages) {
+            spool.complete(message);
+        }
+        // flushes the done markers
+        spool.append(message("last")).get(5, TimeUnit.SECONDS);
+
+        assertThat(spool.getPendingCount(), is(1));
+        assertThat(spool.getSegmentCount() <= 2, is(true));
+        spool.close();
+        assertThat(countSegments(directory) <= 2L, is(true));
+    }
+
+    @Test
+    public void append_compactionFails_stillStoresMessage() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        // small segments, every message starts a new one
+        MessageSpool spool = new MessageSpool(directory, 64);
+        spool.recover();
+        Message first = message("first");
+        Message second = message("second");
+        spool.append(first).get(5, TimeUnit.SECONDS);
+        spool.append(second).get(5, TimeUnit.SECONDS);
+        // a segment that cannot be deleted
+        Path segment = directory.resolve("segment-1.log");
+        Files.delete(segment);
+        Files.createDirectory(segment);
+        Files.createFile(segment.resolve("blocking"));
+
+        spool.complete(first);
+        Message third = message("third");
+        spool.append(third).get(5, TimeUnit.SECONDS);
+        spool.close();
+        Files.delete(segment.resolve("blocking"));
+        Files.delete(segment);
+
+        MessageSpool restarted = new MessageSpool(directory, 64);
+        List<Message> recovered = restarted.recover();
+        restarted.close();
+
+        assertThat(recovered.size(), is(2));
+        assertThat(recovered.get(0).getSubject(), is("second"));
+        assertThat(recovered.get(1).getSubject(), is("third"));
+    }
+
+    @Test
+    public void recover_truncatedLastRecord_ignoresTail() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MessageSpool spool = new MessageSpool(directory, 1024 * 1024);
+        spool.recover();
+        spool.append(message("complete")).get(5, TimeUnit.SECONDS);
+        spool.close();
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(path -> path.toString().endsWith(".log")).findFirst().get();
+        }
+        // simulates a crash in the middle of writing a record
+        Files.write(segment, new byte[]{0, 0, 1, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        MessageSpool restarted = new MessageSpool(directory, 1024 * 1024);
+        List<Message> recovered = restarted.recover();
+        restarted.close();
+
+        assertThat(recovered.size(), is(1));
+        assertThat(recovered.get(0).getSubject(), is("complete"));
+    }
+
+    @Test
+    public void recover_receivedBody_keepsBytesUnchanged() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MessageSpool spool = new MessageSpool(directory, 1024 * 1024);
+        spool.recover();
+        byte[] line = "data Grüße vom Magrathea".getBytes(StandardCharsets.UTF_8);
+        Message message = message("body");
+        message.setBody(ByteBuffer.wrap(line, 5, line.length - 5).slice());
+        spool.append(message).get(5, TimeUnit.SECONDS);
+        spool.close();
+
+        MessageSpool restarted = new MessageSpool(directory, 1024 * 1024);
+        List<Message> recovered = restarted.recover();
+        restarted.close();
+
+        assertThat(recovered.get(0).getBody(), is(ByteBuffer.wrap(line, 5, line.length - 5)));
+        assertThat(recovered.get(0).getData(), is("Grüße vom Magrathea"));
+    }
+
+    private static Message message(String subject) {
+        Message message = new Message();
+        message.setSender("trillian@earth.planet");
+        message.getRecipients().add("arthur@earth.planet");
+        message.getRecipients().add("zaphod@univer.ze");
+        message.setSubject(subject);
+        message.setData("data of " + subject);
+        return message;
+    }
+
+    private static long countSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import dslab.util.Config;
+
+/**
+ * Tests the token buckets of the {@link RateLimiter}.
+ */
+public class RateLimiterTest {
+
+    @Test
+    public void tryAcquire_withinBurst_accepts() {
+        RateLimiter.Limit limit = new RateLimiter.Limit(1, 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(limit.tryAcquire("trillian@earth.planet"), is(true));
+        }
+    }
+
+    @Test
+    public void tryAcquire_burstExceeded_rejectsOnlyThatKey() {
+        RateLimiter.Limit limit = new RateLimiter.Limit(1, 5);
+        for (int i = 0; i < 5; i++) {
+            limit.tryAcquire("trillian@earth.planet");
+        }
+
+        assertThat(limit.tryAcquire("trillian@earth.planet"), is(false));
+        assertThat(limit.tryAcquire("arthur@earth.planet"), is(true));
+        assertThat(limit.getLimited(), is(1L));
+        assertThat(limit.getLimitedKeys(), hasItem("trillian@earth.planet"));
+    }
+
+    @Test
+    public void tryAcquire_afterRefill_acceptsAgain() throws Exception {
+        RateLimiter.Limit limit = new RateLimiter.Limit(100, 1);
+        assertThat(limit.tryAcquire("trillian@earth.planet"), is(true));
+        assertThat(limit.tryAcquire("trillian@earth.planet"), is(false));
+
+        Thread.sleep(20);
+
+        assertThat(limit.tryAcquire("trillian@earth.planet"), is(true));
+    }
+
+    @Test
+    public void tryAcquire_disabledLimit_alwaysAccepts() {
+        RateLimiter.Limit limit = new RateLimiter.Limit(0, 1);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(limit.tryAcquire("trillian@earth.planet"), is(true));
+        }
+    }
+
+    @Test
+    public void tryAcquire_senderLimited_keepsTokenOfAddress() {
+        Config config = new Config("transfer-1");
+        config.setProperty("rate.sender.per.second", "1");
+        config.setProperty("rate.sender.burst", "1");
+        config.setProperty("rate.ip.per.second", "1");
+        config.setProperty("rate.ip.burst", "2");
+        RateLimiter limiter = new RateLimiter(config);
+        assertThat(limiter.tryAcquire("127.0.0.1", "trillian@earth.planet"), is(true));
+
+        // rejected by the sender bucket, the address keeps its second token for another sender
+        assertThat(limiter.tryAcquire("127.0.0.1", "trillian@earth.planet"), is(false));
+        assertThat(limiter.tryAcquire("127.0.0.1", "arthur@earth.planet"), is(true));
+        assertThat(limiter.getRemoteAddresses().getLimited(), is(0L));
+    }
+
+    @Test
+    public void tryAcquire_concurrentClients_grantExactlyTheBurst() throws Exception {
+        RateLimiter.Limit limit = new RateLimiter.Limit(1, 50);
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 20; i++) {
+                    if (limit.tryAcquire("trillian@earth.planet")) {
+                        granted.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(granted.get(), is(50));
+    }
+}
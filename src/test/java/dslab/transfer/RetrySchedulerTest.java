@@ -0,0 +1,90 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dslab.Message;
+
+/**
+ * Tests the backoff and attempt limits of the {@link RetryScheduler}.
+ */
+public class RetrySchedulerTest {
+
+    private RetryScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void delayAfter_consecutiveFailures_doublesUpToMaximum() {
+        scheduler = new RetryScheduler(5, 100, 1000);
+
+        assertThat(scheduler.delayAfter(1), is(100L));
+        assertThat(scheduler.delayAfter(2), is(200L));
+        assertThat(scheduler.delayAfter(4), is(800L));
+        assertThat(scheduler.delayAfter(5), is(1000L));
+        assertThat(scheduler.delayAfter(50), is(1000L));
+    }
+
+    @Test
+    public void mayRetry_lastAttempt_returnsFalse() {
+        scheduler = new RetryScheduler(2, 100, 1000);
+        Delivery delivery = new Delivery(message());
+
+        assertThat(scheduler.mayRetry(delivery), is(true));
+        delivery.failed(Collections.singleton("earth.planet"));
+        assertThat(scheduler.mayRetry(delivery), is(false));
+    }
+
+    @Test
+    public void defer_failedDestination_resubmitsAfterBackoff() throws Exception {
+        scheduler = new RetryScheduler(5, 200, 1000);
+        BlockingQueue<Delivery> resubmitted = new LinkedBlockingQueue<>();
+        scheduler.start(resubmitted::offer);
+        Delivery delivery = new Delivery(message());
+
+        scheduler.failed("127.0.0.1:12552");
+        delivery.failed(Collections.singleton("earth.planet"));
+        long start = System.nanoTime();
+        scheduler.defer(delivery, Collections.singleton("127.0.0.1:12552"));
+
+        assertThat(resubmitted.poll(5, TimeUnit.SECONDS), is(sameInstance(delivery)));
+        // jitter keeps the delay between half and the full backoff
+        assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100), is(true));
+        assertThat(delivery.getAttempts(), is(1));
+    }
+
+    @Test
+    public void succeeded_afterFailures_resetsBackoff() {
+        scheduler = new RetryScheduler(5, 200, 1000);
+
+        scheduler.failed("127.0.0.1:12552");
+        scheduler.failed("127.0.0.1:12552");
+        assertThat(scheduler.getBackoffCount(), is(1));
+        scheduler.succeeded("127.0.0.1:12552");
+
+        assertThat(scheduler.getBackoffCount(), is(0));
+    }
+
+    private static Message message() {
+        Message message = new Message();
+        message.setSender("trillian@earth.planet");
+        message.getRecipients().add("arthur@earth.planet");
+        message.setSubject("subject");
+        message.setData("data");
+        return message;
+    }
+}
@@ -0,0 +1,96 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.ComponentFactory;
+import dslab.Constants;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.util.Config;
+
+/**
+ * Tests that shutting down the transfer server lets transactions in progress finish.
+ */
+public class TransferServerDrainTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(TransferServerDrainTest.class);
+
+    private String componentId = "transfer-1";
+
+    private int serverPort;
+
+    @Before
+    public void setUp() throws Exception {
+        serverPort = new Config(componentId).getInt("tcp.port");
+    }
+
+    @Test(timeout = 15000)
+    public void shutdown_transactionInProgress_finishesTransactionAndClosesIdleSessions() throws Exception {
+        start(ComponentFactory.createTransferServer(componentId, in, out));
+        drainWithTransactionInProgress();
+    }
+
+    @Test(timeout = 15000)
+    public void shutdown_nioAcceptor_finishesTransactionAndClosesIdleSessions() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("tcp.acceptor", "nio");
+        start(new TransferServer(componentId, config, in, out));
+        drainWithTransactionInProgress();
+    }
+
+    private void start(ITransferServer component) throws Exception {
+        new Thread(component).start();
+        LOG.info("Waiting for server socket to appear");
+        Sockets.waitForSocket("localhost", serverPort, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    private void drainWithTransactionInProgress() throws Exception {
+        try (Socket client = new Socket("localhost", serverPort);
+             Socket idle = new Socket("localhost", serverPort)) {
+            BufferedReader idleReader = new BufferedReader(new InputStreamReader(idle.getInputStream()));
+            assertThat(idleReader.readLine().startsWith("ok DMTP"), is(true));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            PrintWriter writer = new PrintWriter(client.getOutputStream(), true);
+            assertThat(reader.readLine().startsWith("ok DMTP"), is(true));
+            sendAndVerify(reader, writer, "begin", "ok");
+            sendAndVerify(reader, writer, "from trillian@earth.planet", "ok");
+
+            LOG.info("Shutting down while a transaction is in progress");
+            in.addLine("shutdown");
+            Thread.sleep(500);
+
+            // the idle session has been closed by the server
+            assertThat(idleReader.readLine(), is(nullValue()));
+
+            sendAndVerify(reader, writer, "to arthur@earth.planet", "ok 1");
+            sendAndVerify(reader, writer, "subject hello", "ok");
+            sendAndVerify(reader, writer, "data hello from junit", "ok");
+            sendAndVerify(reader, writer, "send", "ok");
+
+            // the client stays silent, the session that just became idle is closed by the server long before the drain
+            // timeout closes whatever is left
+            client.setSoTimeout(2000);
+            assertThat(reader.readLine(), is(nullValue()));
+        }
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    private static void sendAndVerify(BufferedReader reader, PrintWriter writer, String request, String response)
+            throws IOException {
+        writer.println(request);
+        assertThat(reader.readLine(), is(response));
+    }
+}
@@ -0,0 +1,126 @@
+package dslab.transfer;
+
+import java.util.Collections;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.Constants;
+import dslab.JunitSocketClient;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.util.Config;
+
+/**
+ * Runs the DMTP interaction of {@link TransferServerProtocolTest} against the selector based acceptor.
+ */
+public class TransferServerNioProtocolTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(TransferServerNioProtocolTest.class);
+
+    private String componentId = "transfer-1";
+
+    private ITransferServer component;
+    private int serverPort;
+
+    @Before
+    public void setUp() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("tcp.acceptor", "nio");
+        config.setProperty("dmtp.max.line.length", "100");
+        config.setProperty("dmtp.max.body.size", "1000");
+        config.setProperty("dmtp.max.recipients", "3");
+        component = new TransferServer(componentId, config, in, out);
+        serverPort = config.getInt("tcp.port");
+        new Thread(component).start();
+
+        LOG.info("Waiting for server socket to appear");
+        Sockets.waitForSocket("localhost", serverPort, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        in.addLine("shutdown"); // send "shutdown" command to command line
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    @Test(timeout = 15000)
+    public void defaultDmtpInteractionTest() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject hello", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void pipelinedRequests_areAnsweredInOrder() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.getWriter().print("begin\nfrom trillian@earth.planet\nto arthur@earth.planet\n");
+            client.getWriter().flush();
+            client.verify("ok");
+            client.verify("ok");
+            client.verify("ok 1");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void tooLongLine_isRejectedAndSessionContinues() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("subject " + String.join("", Collections.nCopies(5000, "x")), "error line too long");
+            client.sendAndVerify("subject hello", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void tooManyRecipients_areRejected() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("to a@earth.planet,b@earth.planet,c@earth.planet,d@earth.planet", "error too many recipients");
+            client.sendAndVerify("to a@earth.planet,b@earth.planet,c@earth.planet", "ok 3");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void tooLargeDataBlock_isRejectedAtItsEnd() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.send("data");
+            for (int i = 0; i < 20; i++) {
+                client.send(String.join("", Collections.nCopies(90, "x")));
+            }
+            client.sendAndVerify(".", "error message too large");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void sendWithoutRecipient_returnsErrorOnSend() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("subject hello", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "error");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+}
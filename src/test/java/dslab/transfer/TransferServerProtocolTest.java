@@ -1,5 +1,7 @@
 package dslab.transfer;
 
+import java.util.Collections;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.After;
@@ -55,6 +57,46 @@ public class TransferServerProtocolTest extends TestBase {
         }
     }
 
+    @Test(timeout = 15000)
+    public void dataBlock_isAnsweredAfterTerminatingDot() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject hello", "ok");
+            client.send("data");
+            // requests inside the block are part of the body
+            client.send("send");
+            client.send("..quit");
+            client.sendAndVerify(".", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void emptyDataBlock_returnsError() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.send("data");
+            client.sendAndVerify(".", "error no content");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void tooLongLine_isRejectedAndSessionContinues() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("data " + String.join("", Collections.nCopies(70000, "x")), "error line too long");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
     @Test(timeout = 15000)
     public void sendWithoutRecipient_returnsErrorOnSend() throws Exception {
         try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {